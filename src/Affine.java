@@ -2,10 +2,53 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 public class Affine extends JFrame {
-    public static void main(String[] args){ SwingUtilities.invokeLater(Affine::new); }
+    public static void main(String[] args){
+        if (args.length>0 && args[0].equals("--bench")){ Bench.main(Arrays.copyOfRange(args, 1, args.length)); return; }
+        if (args.length>0 && args[0].equals("--soak")){ SpinSoak.main(Arrays.copyOfRange(args, 1, args.length)); return; }
+        if (args.length>0 && args[0].equals("--render")){ HeadlessRender.main(Arrays.copyOfRange(args, 1, args.length)); return; }
+        if (args.length>0 && args[0].equals("--stress")){
+            try { StressHarness.main(Arrays.copyOfRange(args, 1, args.length)); }
+            catch (IOException ex){ System.err.println("Ошибка: " + ex.getMessage()); System.exit(1); }
+            return;
+        }
+        if (args.length>0 && args[0].equals("--convert")){
+            try { ModelIO.convert(Arrays.copyOfRange(args, 1, args.length)); }
+            catch (IOException ex){ System.err.println("Ошибка: " + ex.getMessage()); System.exit(1); }
+            return;
+        }
+        SwingUtilities.invokeLater(Affine::new);
+    }
 
     // ---------- Геометрия/математика ----------
     static class Vec3 {
@@ -27,142 +70,2146 @@ public class Affine extends JFrame {
         static Mat4 identity(){ return new Mat4().setIdentity(); }
         Mat4 setIdentity(){ Arrays.fill(m,0); m[0]=m[5]=m[10]=m[15]=1; return this; }
 
-        static Mat4 translation(double tx, double ty, double tz){
-            Mat4 r = identity(); r.m[12]=tx; r.m[13]=ty; r.m[14]=tz; return r;
+        Mat4 set(Mat4 o){ System.arraycopy(o.m, 0, m, 0, 16); return this; }
+
+        static Mat4 translation(double tx, double ty, double tz){ return new Mat4().setTranslation(tx,ty,tz); }
+        static Mat4 scale(double sx,double sy,double sz){ return new Mat4().setScale(sx,sy,sz); }
+        static Mat4 rotationX(double a){ return new Mat4().setRotationX(a); }
+        static Mat4 rotationY(double a){ return new Mat4().setRotationY(a); }
+        static Mat4 rotationZ(double a){ return new Mat4().setRotationZ(a); }
+        static Mat4 rotationAroundAxis(Vec3 axisUnit, double angle){
+            return new Mat4().setRotationAroundAxis(axisUnit.x, axisUnit.y, axisUnit.z, angle);
+        }
+        static Mat4 perspective(double fovYdeg, double aspect, double zNear, double zFar){
+            return new Mat4().setPerspective(fovYdeg, aspect, zNear, zFar);
+        }
+        static Mat4 lookAt(Vec3 eye, Vec3 center, Vec3 up){
+            return new Mat4().setLookAt(eye.x, eye.y, eye.z, center.x, center.y, center.z, up.x, up.y, up.z);
+        }
+
+        // ---- изменяющие варианты: пишут в this, ничего не выделяют ----
+        Mat4 setTranslation(double tx, double ty, double tz){
+            setIdentity(); m[12]=tx; m[13]=ty; m[14]=tz; return this;
+        }
+        Mat4 setScale(double sx,double sy,double sz){
+            setIdentity(); m[0]=sx; m[5]=sy; m[10]=sz; return this;
+        }
+        Mat4 setRotationX(double a){
+            double c=Math.cos(a), s=Math.sin(a);
+            setIdentity();
+            m[5]=c;
+            m[6]=s;
+            m[9]=-s;
+            m[10]=c;
+            return this;
+        }
+        Mat4 setRotationY(double a){
+            double c=Math.cos(a), s=Math.sin(a);
+            setIdentity();
+            m[0]=c;
+            m[2]=-s;
+            m[8]=s;
+            m[10]=c;
+            return this;
+        }
+        Mat4 setRotationZ(double a){
+            double c=Math.cos(a), s=Math.sin(a);
+            setIdentity();
+            m[0]=c;
+            m[1]=s;
+            m[4]=-s;
+            m[5]=c;
+            return this;
+        }
+        Mat4 setRotationAroundAxis(double x, double y, double z, double angle){
+            double c=Math.cos(angle), s=Math.sin(angle), t=1-c;
+            m[0] = t*x*x + c;     m[4] = t*x*y - s*z;  m[8]  = t*x*z + s*y;  m[12]=0;
+            m[1] = t*x*y + s*z;   m[5] = t*y*y + c;    m[9]  = t*y*z - s*x;  m[13]=0;
+            m[2] = t*x*z - s*y;   m[6] = t*y*z + s*x;  m[10] = t*z*z + c;    m[14]=0;
+            m[3]=m[7]=m[11]=0; m[15]=1;
+            return this;
+        }
+        // поворот на angle вокруг прямой P1P2: то же, что T(P1)*R*T(-P1), но одной матрицей
+        Mat4 setRotationAroundLine(Vec3 P1, Vec3 P2, double angle){
+            double ax=P2.x-P1.x, ay=P2.y-P1.y, az=P2.z-P1.z;
+            double L=Math.sqrt(ax*ax+ay*ay+az*az);
+            if (L==0) return setIdentity();
+            setRotationAroundAxis(ax/L, ay/L, az/L, angle);
+            m[12] = P1.x - (m[0]*P1.x + m[4]*P1.y + m[8]*P1.z);
+            m[13] = P1.y - (m[1]*P1.x + m[5]*P1.y + m[9]*P1.z);
+            m[14] = P1.z - (m[2]*P1.x + m[6]*P1.y + m[10]*P1.z);
+            return this;
+        }
+        Mat4 setPerspective(double fovYdeg, double aspect, double zNear, double zFar){
+            double f = 1.0/Math.tan(Math.toRadians(fovYdeg)/2.0);
+            Arrays.fill(m,0);
+            m[0]=f/aspect; m[5]=f; m[10]=(zFar+zNear)/(zNear-zFar); m[11]=-1; m[14]=(2*zFar*zNear)/(zNear-zFar);
+            return this;
+        }
+        Mat4 setLookAt(double ex, double ey, double ez, double cx, double cy, double cz, double ux, double uy, double uz){
+            // f = normalize(center - eye)
+            double fx=cx-ex, fy=cy-ey, fz=cz-ez;
+            double L=Math.sqrt(fx*fx+fy*fy+fz*fz);
+            if (L==0){ fx=fy=fz=0; } else { fx/=L; fy/=L; fz/=L; }
+            // s = normalize(f x up)
+            double sx=fy*uz-fz*uy, sy=fz*ux-fx*uz, sz=fx*uy-fy*ux;
+            L=Math.sqrt(sx*sx+sy*sy+sz*sz);
+            if (L==0){ sx=sy=sz=0; } else { sx/=L; sy/=L; sz/=L; }
+            // u = s x f
+            double vx=sy*fz-sz*fy, vy=sz*fx-sx*fz, vz=sx*fy-sy*fx;
+            m[0]=sx; m[4]=sy; m[8] =sz; m[12]= -(sx*ex+sy*ey+sz*ez);
+            m[1]=vx; m[5]=vy; m[9] =vz; m[13]= -(vx*ex+vy*ey+vz*ez);
+            m[2]=-fx; m[6]=-fy; m[10]=-fz; m[14]=  fx*ex+fy*ey+fz*ez;
+            m[3]=0; m[7]=0; m[11]=0; m[15]=1;
+            return this;
+        }
+        // this = a * b; допускается a==this и/или b==this
+        Mat4 mulInto(Mat4 a, Mat4 b){
+            double[] A=a.m, B=b.m, R=m;
+            if (R==A && R==B){ A=B=A.clone(); }
+            if (R!=A){
+                // по столбцам: столбец c результата зависит только от столбца c матрицы B
+                for (int c=0; c<16; c+=4){
+                    double b0=B[c], b1=B[c+1], b2=B[c+2], b3=B[c+3];
+                    R[c]   = A[0]*b0 + A[4]*b1 + A[8]*b2  + A[12]*b3;
+                    R[c+1] = A[1]*b0 + A[5]*b1 + A[9]*b2  + A[13]*b3;
+                    R[c+2] = A[2]*b0 + A[6]*b1 + A[10]*b2 + A[14]*b3;
+                    R[c+3] = A[3]*b0 + A[7]*b1 + A[11]*b2 + A[15]*b3;
+                }
+            } else {
+                // по строкам: строка r результата зависит только от строки r матрицы A
+                for (int r=0; r<4; r++){
+                    double a0=A[r], a1=A[r+4], a2=A[r+8], a3=A[r+12];
+                    R[r]    = a0*B[0]  + a1*B[1]  + a2*B[2]  + a3*B[3];
+                    R[r+4]  = a0*B[4]  + a1*B[5]  + a2*B[6]  + a3*B[7];
+                    R[r+8]  = a0*B[8]  + a1*B[9]  + a2*B[10] + a3*B[11];
+                    R[r+12] = a0*B[12] + a1*B[13] + a2*B[14] + a3*B[15];
+                }
+            }
+            return this;
+        }
+        Mat4 preMultiply(Mat4 l){ return mulInto(l, this); }
+        Mat4 mul(Mat4 o){ return new Mat4().mulInto(this, o); }
+        double[] mulVec4(double x,double y,double z,double w){
+            return new double[]{
+                    m[0]*x + m[4]*y + m[8]*z  + m[12]*w,
+                    m[1]*x + m[5]*y + m[9]*z  + m[13]*w,
+                    m[2]*x + m[6]*y + m[10]*z + m[14]*w,
+                    m[3]*x + m[7]*y + m[11]*z + m[15]*w
+            };
+        }
+        // пакетная проекция n вершин (xyz подряд) в экранные координаты (x,y подряд) без аллокаций;
+        // вершины с w==0 получают NaN, индексы вершин при этом не сдвигаются
+        void projectBatch(double[] xyz, int n, int W, int H, double[] out){ projectBatch(xyz, 0, n, W, H, out); }
+        // вершины [from, to) — для параллельной проекции по частям
+        void projectBatch(double[] xyz, int from, int to, int W, int H, double[] out){
+            double m0=m[0], m4=m[4], m8=m[8],  m12=m[12];
+            double m1=m[1], m5=m[5], m9=m[9],  m13=m[13];
+            double m3=m[3], m7=m[7], m11=m[11], m15=m[15];
+            double hw=0.5*W, hh=0.5*H;
+            for (int i=from, j=3*from, k=2*from; i<to; i++, j+=3, k+=2){
+                double x=xyz[j], y=xyz[j+1], z=xyz[j+2];
+                double w = m3*x + m7*y + m11*z + m15;
+                if (w==0){ out[k]=Double.NaN; out[k+1]=Double.NaN; continue; }
+                double iw = 1.0/w;
+                out[k]   = ((m0*x + m4*y + m8*z + m12)*iw + 1.0)*hw;
+                out[k+1] = (1.0 - (m1*x + m5*y + m9*z + m13)*iw)*hh;
+            }
+        }
+        // то же над раздельными float-массивами (SoA): умножение на MVP, деление на w и перевод в пиксели
+        // одним проходом без ветвлений; выигрыш у projectBatch даёт float вместо double и плотные массивы по осям,
+        // векторизация цикла не гарантируется; при w==0 получаются Inf/NaN — такие вершины отбрасываются проверкой Float.isFinite
+        void projectPacked(float[] xs, float[] ys, float[] zs, int n, int W, int H, float[] sx, float[] sy){
+            projectPacked(xs, ys, zs, 0, n, W, H, sx, sy);
+        }
+        void projectPacked(float[] xs, float[] ys, float[] zs, int from, int to, int W, int H, float[] sx, float[] sy){
+            float m0=(float)m[0], m4=(float)m[4], m8=(float)m[8],  m12=(float)m[12];
+            float m1=(float)m[1], m5=(float)m[5], m9=(float)m[9],  m13=(float)m[13];
+            float m3=(float)m[3], m7=(float)m[7], m11=(float)m[11], m15=(float)m[15];
+            float hw=0.5f*W, hh=0.5f*H;
+            for (int i=from; i<to; i++){
+                float x=xs[i], y=ys[i], z=zs[i];
+                float iw = 1f/(m3*x + m7*y + m11*z + m15);
+                sx[i] = ((m0*x + m4*y + m8*z + m12)*iw + 1f)*hw;
+                sy[i] = (1f - (m1*x + m5*y + m9*z + m13)*iw)*hh;
+            }
+        }
+    }
+
+    // ---------- Ориентация: кватернион + перенос + масштаб ----------
+    static class Quat {
+        double w = 1, x, y, z;
+
+        Quat setIdentity(){ w=1; x=y=z=0; return this; }
+        Quat set(Quat o){ w=o.w; x=o.x; y=o.y; z=o.z; return this; }
+        // поворот на angle вокруг единичной оси (ax, ay, az)
+        Quat setAxisAngle(double ax, double ay, double az, double angle){
+            double h = 0.5*angle, s = Math.sin(h);
+            w = Math.cos(h); x = ax*s; y = ay*s; z = az*s;
+            return this;
+        }
+        // this = a * b (сначала поворот b, затем a); a и b могут совпадать с this
+        Quat mulInto(Quat a, Quat b){
+            double nw = a.w*b.w - a.x*b.x - a.y*b.y - a.z*b.z;
+            double nx = a.w*b.x + a.x*b.w + a.y*b.z - a.z*b.y;
+            double ny = a.w*b.y - a.x*b.z + a.y*b.w + a.z*b.x;
+            double nz = a.w*b.z + a.x*b.y - a.y*b.x + a.z*b.w;
+            w=nw; x=nx; y=ny; z=nz;
+            return this;
+        }
+        Quat normalize(){
+            double L = Math.sqrt(w*w + x*x + y*y + z*z);
+            if (L == 0) return setIdentity();
+            w/=L; x/=L; y/=L; z/=L;
+            return this;
+        }
+    }
+
+    // поза модели M = T(t) * R(q) * S(s): составляется без произведений матриц,
+    // поэтому поворотная часть всегда ортонормирована (с точностью до одного округления)
+    static class Pose {
+        final Quat q = new Quat();
+        double tx, ty, tz, s = 1;
+
+        Pose setIdentity(){ q.setIdentity(); tx=ty=tz=0; s=1; return this; }
+        Pose set(Pose o){ q.set(o.q); tx=o.tx; ty=o.ty; tz=o.tz; s=o.s; return this; }
+
+        // левые умножения — как Mat4.preMultiply с соответствующей матрицей
+        Pose preTranslate(double dx, double dy, double dz){ tx+=dx; ty+=dy; tz+=dz; return this; }
+        Pose preScale(double k){ tx*=k; ty*=k; tz*=k; s*=k; return this; }
+        // поворот r вокруг прямой через точку (px, py, pz)
+        Pose preRotate(Quat r, double px, double py, double pz){
+            q.mulInto(r, q).normalize();
+            double vx = tx-px, vy = ty-py, vz = tz-pz;
+            // v' = v + 2w(u x v) + 2u x (u x v), u = (r.x, r.y, r.z)
+            double cx = r.y*vz - r.z*vy, cy = r.z*vx - r.x*vz, cz = r.x*vy - r.y*vx;
+            double ccx = r.y*cz - r.z*cy, ccy = r.z*cx - r.x*cz, ccz = r.x*cy - r.y*cx;
+            tx = px + vx + 2*(r.w*cx + ccx);
+            ty = py + vy + 2*(r.w*cy + ccy);
+            tz = pz + vz + 2*(r.w*cz + ccz);
+            return this;
+        }
+
+        Mat4 toMatrix(Mat4 out){
+            double w=q.w, x=q.x, y=q.y, z=q.z;
+            double[] m = out.m;
+            m[0] = s*(1 - 2*(y*y + z*z)); m[4] = s*2*(x*y - w*z);     m[8]  = s*2*(x*z + w*y);     m[12] = tx;
+            m[1] = s*2*(x*y + w*z);     m[5] = s*(1 - 2*(x*x + z*z)); m[9]  = s*2*(y*z - w*x);     m[13] = ty;
+            m[2] = s*2*(x*z - w*y);     m[6] = s*2*(y*z + w*x);     m[10] = s*(1 - 2*(x*x + y*y)); m[14] = tz;
+            m[3] = m[7] = m[11] = 0; m[15] = 1;
+            return out;
+        }
+    }
+
+    // вращение вокруг прямой P1P2: поза каждого кадра считается от базовой позы по накопленному углу
+    // (скаляр, приводится к (-pi, pi]), а не домножением предыдущей матрицы — ошибка не накапливается
+    static class Spin {
+        final Pose base = new Pose(), current = new Pose();
+        private final Quat r = new Quat();
+        double px, py, pz, ax, ay = 1, az;
+        double angle;
+
+        // false, если точки совпадают (ось не задана)
+        boolean setAxis(Vec3 P1, Vec3 P2){
+            double dx=P2.x-P1.x, dy=P2.y-P1.y, dz=P2.z-P1.z, L=Math.sqrt(dx*dx+dy*dy+dz*dz);
+            if (L == 0) return false;
+            px=P1.x; py=P1.y; pz=P1.z; ax=dx/L; ay=dy/L; az=dz/L;
+            return true;
+        }
+        // новая базовая поза (поза изменена пользователем или сменилась ось)
+        void rebase(Pose p){ base.set(p); current.set(p); angle = 0; }
+        void advance(double dt, double degPerSec){
+            angle = Math.IEEEremainder(angle + Math.toRadians(degPerSec*dt), 2*Math.PI);
+        }
+        Pose update(){
+            return current.set(base).preRotate(r.setAxisAngle(ax, ay, az, angle), px, py, pz);
+        }
+    }
+
+    static class WireModel {
+        // упакованное хранение: координаты xyz подряд, рёбра — пары индексов
+        double[] xyz;
+        int[] edgeIdx;
+        int vertexCount, edgeCount;
+        EdgeBVH bvh;    // строится при первом обращении, сбрасывается при изменении модели
+        float[] px, py, pz;   // копия координат по осям во float для Mat4.projectPacked, строится так же лениво
+        // упрощённые наборы рёбер (см. lods): lods[0] — сама модель, дальше всё грубее;
+        // lodCell — сторона клетки кластеризации уровня, bounds — ограничивающая сфера cx, cy, cz, r
+        WireModel[] lods;
+        double[] lodCell, bounds;
+        int[] lodSource;    // у уровня LOD: для каждой вершины — ближайшая к ней вершина исходной модели
+        static final int LOD_MIN_EDGES = 1000;
+        // грани-треугольники по 3 индекса (для удаления невидимых линий): заданные с моделью (addFace/addPolygon)
+        // или, если их нет, найденные по циклам рёбер длины 3 и 4 при первом обращении (faces)
+        int[] faceIdx = new int[0];
+        int faceCount;
+        private int[] cycleFaces;
+        static final int CYCLE_MAX_DEGREE = 64;
+
+        WireModel(int vertexCapacity, int edgeCapacity){
+            xyz = new double[3*Math.max(1, vertexCapacity)];
+            edgeIdx = new int[2*Math.max(1, edgeCapacity)];
+        }
+        // готовые упакованные массивы (загрузчики): данные не копируются
+        WireModel(double[] xyz, int vertexCount, int[] edgeIdx, int edgeCount){
+            this.xyz = xyz; this.vertexCount = vertexCount;
+            this.edgeIdx = edgeIdx; this.edgeCount = edgeCount;
+        }
+        int addVertex(double x, double y, double z){
+            int i = 3*vertexCount;
+            if (i == xyz.length) xyz = Arrays.copyOf(xyz, Math.max(3, xyz.length*2));
+            xyz[i]=x; xyz[i+1]=y; xyz[i+2]=z;
+            bvh = null; px = py = pz = null; lods = null;
+            return vertexCount++;
+        }
+        void addEdge(int a, int b){
+            if (a<0 || a>=vertexCount || b<0 || b>=vertexCount)
+                throw new IllegalArgumentException("Ребро ссылается на несуществующую вершину: "+a+"-"+b);
+            int i = 2*edgeCount;
+            if (i == edgeIdx.length) edgeIdx = Arrays.copyOf(edgeIdx, Math.max(2, edgeIdx.length*2));
+            edgeIdx[i]=a; edgeIdx[i+1]=b;
+            edgeCount++;
+            bvh = null; lods = null; cycleFaces = null;
+        }
+        void addFace(int a, int b, int c){
+            if (Math.min(a, Math.min(b, c)) < 0 || Math.max(a, Math.max(b, c)) >= vertexCount)
+                throw new IllegalArgumentException("Грань ссылается на несуществующую вершину: "+a+"-"+b+"-"+c);
+            int i = 3*faceCount;
+            if (i == faceIdx.length) faceIdx = Arrays.copyOf(faceIdx, Math.max(3, faceIdx.length*2));
+            faceIdx[i]=a; faceIdx[i+1]=b; faceIdx[i+2]=c;
+            faceCount++;
+        }
+        // выпуклый многоугольник веером треугольников
+        void addPolygon(int[] poly, int n){
+            for (int k=1; k+1<n; k++) addFace(poly[0], poly[k], poly[k+1]);
+        }
+        int[] faces(){
+            if (faceCount > 0){
+                if (faceIdx.length != 3*faceCount) faceIdx = Arrays.copyOf(faceIdx, 3*faceCount);
+                return faceIdx;
+            }
+            if (cycleFaces == null) cycleFaces = facesFromCycles();
+            return cycleFaces;
+        }
+        // треугольники рёбер и четырёхугольники без диагоналей (клетки сеток) — каждый цикл один раз:
+        // от наименьшей вершины a, у четырёхугольника a-b-c-d ещё b < d. Соседи вершин с числом рёбер
+        // больше CYCLE_MAX_DEGREE не перебираются (звёзды и веера граней не дают)
+        private int[] facesFromCycles(){
+            int V = vertexCount;
+            int[] start = new int[V+1];
+            for (int i=0, n2=2*edgeCount; i<n2; i++) start[edgeIdx[i]+1]++;
+            for (int v=0; v<V; v++) start[v+1] += start[v];
+            int[] nbr = new int[2*edgeCount], fill = Arrays.copyOf(start, V);
+            for (int i=0, n2=2*edgeCount; i<n2; i+=2){
+                int a = edgeIdx[i], b = edgeIdx[i+1];
+                nbr[fill[a]++] = b; nbr[fill[b]++] = a;
+            }
+            for (int v=0; v<V; v++) Arrays.sort(nbr, start[v], start[v+1]);
+
+            int[] out = new int[0];
+            int n = 0;
+            for (int a=0; a<V; a++){
+                if (start[a+1]-start[a] > CYCLE_MAX_DEGREE) continue;
+                for (int i=start[a]; i<start[a+1]; i++){
+                    int b = nbr[i];
+                    if (b <= a || start[b+1]-start[b] > CYCLE_MAX_DEGREE) continue;
+                    for (int j=start[b]; j<start[b+1]; j++){
+                        int c = nbr[j];
+                        if (c <= a || c == b) continue;
+                        boolean ac = adjacent(nbr, start, a, c);
+                        if (ac){
+                            if (c > b){
+                                if (n+3 > out.length) out = Arrays.copyOf(out, Math.max(48, 2*out.length));
+                                out[n++]=a; out[n++]=b; out[n++]=c;
+                            }
+                            continue;
+                        }
+                        if (start[c+1]-start[c] > CYCLE_MAX_DEGREE) continue;
+                        for (int k=start[c]; k<start[c+1]; k++){
+                            int d = nbr[k];
+                            if (d <= b || !adjacent(nbr, start, a, d) || adjacent(nbr, start, b, d)) continue;
+                            if (n+6 > out.length) out = Arrays.copyOf(out, Math.max(48, 2*out.length));
+                            out[n++]=a; out[n++]=b; out[n++]=c;
+                            out[n++]=a; out[n++]=c; out[n++]=d;
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+        private static boolean adjacent(int[] nbr, int[] start, int a, int b){
+            return Arrays.binarySearch(nbr, start[a], start[a+1], b) >= 0;
+        }
+        EdgeBVH bvh(){
+            if (bvh == null) bvh = new EdgeBVH(this);
+            return bvh;
+        }
+        void packCoords(){
+            if (px != null) return;
+            int n = vertexCount;
+            float[] xs = new float[n], ys = new float[n], zs = new float[n];
+            for (int i=0, j=0; i<n; i++, j+=3){ xs[i]=(float)xyz[j]; ys[i]=(float)xyz[j+1]; zs[i]=(float)xyz[j+2]; }
+            px = xs; py = ys; pz = zs;
+        }
+        // уровни детализации кластеризацией вершин по сетке 1024^3, 256^3, ... в ограничивающем кубе;
+        // уровень сохраняется, только если рёбер в нём заметно меньше, чем в предыдущем
+        WireModel[] lods(){
+            if (lods != null) return lods;
+            double minX=Double.MAX_VALUE, minY=minX, minZ=minX, maxX=-minX, maxY=maxX, maxZ=maxX;
+            for (int i=0, n3=3*vertexCount; i<n3; i+=3){
+                minX=Math.min(minX,xyz[i]);   maxX=Math.max(maxX,xyz[i]);
+                minY=Math.min(minY,xyz[i+1]); maxY=Math.max(maxY,xyz[i+1]);
+                minZ=Math.min(minZ,xyz[i+2]); maxZ=Math.max(maxZ,xyz[i+2]);
+            }
+            double cx=(minX+maxX)/2, cy=(minY+maxY)/2, cz=(minZ+maxZ)/2, r=0;
+            for (int i=0, n3=3*vertexCount; i<n3; i+=3){
+                double dx=xyz[i]-cx, dy=xyz[i+1]-cy, dz=xyz[i+2]-cz;
+                r = Math.max(r, dx*dx+dy*dy+dz*dz);
+            }
+            bounds = new double[]{cx, cy, cz, Math.sqrt(r)};
+
+            ArrayList<WireModel> levels = new ArrayList<>();
+            ArrayList<Double> cells = new ArrayList<>();
+            levels.add(this); cells.add(0.0);
+            double extent = Math.max(maxX-minX, Math.max(maxY-minY, maxZ-minZ));
+            if (edgeCount >= LOD_MIN_EDGES && extent > 0){
+                // клетки мельче средней длины ребра почти ничего не сливают — такие уровни не строим
+                double avg = 0;
+                int step = Math.max(1, edgeCount/10_000), samples = 0;
+                for (int e=0; e<edgeCount; e+=step, samples++){
+                    int a = 3*edgeIdx[2*e], b = 3*edgeIdx[2*e+1];
+                    double dx=xyz[b]-xyz[a], dy=xyz[b+1]-xyz[a+1], dz=xyz[b+2]-xyz[a+2];
+                    avg += Math.sqrt(dx*dx+dy*dy+dz*dz);
+                }
+                avg /= samples;
+                for (int res = 1024; res >= 4; res /= 4){
+                    double cell = extent/res;
+                    if (cell < avg) continue;
+                    WireModel last = levels.get(levels.size()-1);
+                    WireModel lvl = clustered(minX, minY, minZ, cell);
+                    if (lvl.edgeCount > 0.6*last.edgeCount) continue;
+                    levels.add(lvl); cells.add(cell);
+                    if (lvl.edgeCount < 100) break;
+                }
+            }
+            lodCell = new double[cells.size()];
+            for (int i=0;i<lodCell.length;i++) lodCell[i] = cells.get(i);
+            return lods = levels.toArray(new WireModel[0]);
+        }
+        // вершины одной клетки сливаются в их среднюю точку; рёбра внутри клетки и повторы пропадают
+        WireModel clustered(double ox, double oy, double oz, double cell){
+            int V = vertexCount;
+            int cap = Integer.highestOneBit(Math.max(2, V)) << 2, mask = cap-1;
+            long[] keys = new long[cap];
+            int[] ids = new int[cap], cluster = new int[V], count = new int[V];
+            double[] sum = new double[3*V];
+            int C = 0;
+            for (int v=0, j=0; v<V; v++, j+=3){
+                long ix = (long)((xyz[j]-ox)/cell), iy = (long)((xyz[j+1]-oy)/cell), iz = (long)((xyz[j+2]-oz)/cell);
+                long key = ((ix << 21 | iy) << 21 | iz) + 1;    // 0 — пустая ячейка таблицы
+                int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+                while (keys[slot] != 0 && keys[slot] != key) slot = (slot+1) & mask;
+                if (keys[slot] == 0){ keys[slot] = key; ids[slot] = C++; }
+                int c = ids[slot];
+                cluster[v] = c; count[c]++;
+                sum[3*c] += xyz[j]; sum[3*c+1] += xyz[j+1]; sum[3*c+2] += xyz[j+2];
+            }
+            WireModel out = new WireModel(C, edgeCount/4);
+            for (int c=0; c<C; c++) out.addVertex(sum[3*c]/count[c], sum[3*c+1]/count[c], sum[3*c+2]/count[c]);
+            int[] source = new int[C];
+            double[] best = new double[C];
+            Arrays.fill(best, Double.MAX_VALUE);
+            for (int v=0, j=0; v<V; v++, j+=3){
+                int c = cluster[v], k = 3*c;
+                double dx=xyz[j]-out.xyz[k], dy=xyz[j+1]-out.xyz[k+1], dz=xyz[j+2]-out.xyz[k+2];
+                double d = dx*dx+dy*dy+dz*dz;
+                if (d < best[c]){ best[c] = d; source[c] = v; }
+            }
+            out.lodSource = source;
+            ModelIO.EdgeSet seen = new ModelIO.EdgeSet();
+            for (int i=0, n2=2*edgeCount; i<n2; i+=2){
+                int a = cluster[edgeIdx[i]], b = cluster[edgeIdx[i+1]];
+                if (a != b && seen.add(a, b)) out.addEdge(a, b);
+            }
+            return out.trim();
         }
-        static Mat4 scale(double sx,double sy,double sz){
-            Mat4 r = new Mat4(); r.m[0]=sx; r.m[5]=sy; r.m[10]=sz; r.m[15]=1; return r;
+        // обрезать буферы до фактического размера
+        WireModel trim(){
+            xyz = Arrays.copyOf(xyz, 3*vertexCount);
+            edgeIdx = Arrays.copyOf(edgeIdx, 2*edgeCount);
+            faceIdx = Arrays.copyOf(faceIdx, 3*faceCount);
+            return this;
+        }
+
+        static WireModel letterB(double s) {
+            WireModel m = new WireModel(24, 36);
+            addLetterB(m, 0, 0, s, 1);
+            return m.trim();
+        }
+        // объёмная буква B шириной s, высотой 1.5s и толщиной depth с левым нижним задним углом в (ox, oy, 0):
+        // 24 вершины, 36 рёбер, 46 граней
+        static void addLetterB(WireModel m, double ox, double oy, double s, double depth){
+            int o = m.vertexCount;
+            double w = s, h = s*1.5, thirdW = w/3, fifthH = h/5;
+            for (int k=0; k<=1; k++){
+                double z = k*depth;
+                // Буква
+                m.addVertex(ox, oy, z); //0
+                m.addVertex(ox, oy+h, z); //1
+                m.addVertex(ox+w, oy+h, z); //2
+                m.addVertex(ox+w, oy+4*fifthH, z); //3
+                m.addVertex(ox+thirdW, oy+4*fifthH, z); //4
+                m.addVertex(ox+thirdW, oy+3*fifthH, z); //5
+                m.addVertex(ox+w, oy+3*fifthH, z); //6
+                m.addVertex(ox+w, oy, z); //7
+                // Отверстие
+                m.addVertex(ox+thirdW, oy+2*fifthH, z); //8
+                m.addVertex(ox+2*thirdW, oy+2*fifthH, z); //9
+                m.addVertex(ox+2*thirdW, oy+fifthH, z); //10
+                m.addVertex(ox+thirdW, oy+fifthH, z); //11
+            }
+            // Рёбра: контуры задней (z=0) и передней (z=1) буквы
+            for (int z=0; z<=12; z+=12){
+                for (int i=0;i<7;i++) m.addEdge(o+z+i, o+z+i+1); m.addEdge(o+z+7, o+z);
+                for (int i=8;i<11;i++) m.addEdge(o+z+i, o+z+i+1); m.addEdge(o+z+11, o+z+8);
+            }
+            // Соединение передней/задней
+            for (int i=0;i<12;i++) m.addEdge(o+i, o+i+12);
+            // Грани: лицевые стороны (контур с отверстием без новых вершин) и боковые стенки
+            int[] cap = {1,2,3, 1,3,4, 0,1,4, 0,4,5, 0,7,10, 0,10,11, 7,6,9, 7,9,10, 6,5,8, 6,8,9, 0,11,5};
+            for (int z=0; z<=12; z+=12)
+                for (int i=0;i<cap.length;i+=3) m.addFace(o+cap[i]+z, o+cap[i+1]+z, o+cap[i+2]+z);
+            for (int i=0;i<12;i++){
+                int j = i==7 ? 0 : i==11 ? 8 : i+1;
+                m.addPolygon(new int[]{o+i, o+j, o+j+12, o+i+12}, 4);
+            }
+        }
+        // плоская сетка n x n клеток со стороной size в плоскости z=0: (n+1)^2 вершин, 2n(n+1) рёбер
+        static WireModel grid(int n, double size) {
+            int k = n+1;
+            WireModel m = new WireModel(k*k, 2*n*k);
+            double step = size/n, o = -size/2;
+            for (int j=0;j<k;j++) for (int i=0;i<k;i++) m.addVertex(o+i*step, o+j*step, 0);
+            for (int j=0;j<k;j++) for (int i=0;i<n;i++) m.addEdge(j*k+i, j*k+i+1);
+            for (int j=0;j<n;j++) for (int i=0;i<k;i++) m.addEdge(j*k+i, (j+1)*k+i);
+            return m.trim();
+        }
+        // сетка, у которой примерно edges рёбер
+        static WireModel gridWithEdges(int edges, double size){
+            return grid(Math.max(1, (int)Math.round(Math.sqrt(edges/2.0))), size);
+        }
+        // UV-сфера радиуса r: rings поясов от полюса до полюса, segments меридианов;
+        // (rings-1)*segments+2 вершины, (2*rings-1)*segments рёбер, грани — четырёхугольники и треугольники у полюсов
+        static WireModel uvSphere(int rings, int segments, double r){
+            rings = Math.max(2, rings); segments = Math.max(3, segments);
+            WireModel m = new WireModel((rings-1)*segments+2, (2*rings-1)*segments);
+            int north = m.addVertex(0, r, 0);
+            for (int i=1;i<rings;i++){
+                double phi = Math.PI*i/rings, y = r*Math.cos(phi), rr = r*Math.sin(phi);
+                for (int j=0;j<segments;j++){
+                    double t = 2*Math.PI*j/segments;
+                    m.addVertex(rr*Math.cos(t), y, rr*Math.sin(t));
+                }
+            }
+            int south = m.addVertex(0, -r, 0);
+            for (int i=0;i<rings-1;i++){
+                int row = 1 + i*segments;
+                for (int j=0;j<segments;j++){
+                    int a = row+j, b = row+(j+1)%segments;
+                    m.addEdge(a, b);
+                    if (i == 0){ m.addEdge(north, a); m.addFace(north, b, a); }
+                    if (i == rings-2){ m.addEdge(a, south); m.addFace(a, b, south); }
+                    else {
+                        m.addEdge(a, a+segments);
+                        m.addPolygon(new int[]{a, b, b+segments, a+segments}, 4);
+                    }
+                }
+            }
+            return m.trim();
+        }
+        // тор в плоскости XZ: major сечений вдоль большой окружности радиуса R, minor вершин на сечении радиуса r;
+        // major*minor вершин, 2*major*minor рёбер
+        static WireModel torus(int major, int minor, double R, double r){
+            major = Math.max(3, major); minor = Math.max(3, minor);
+            WireModel m = new WireModel(major*minor, 2*major*minor);
+            for (int i=0;i<major;i++){
+                double u = 2*Math.PI*i/major;
+                for (int j=0;j<minor;j++){
+                    double v = 2*Math.PI*j/minor, d = R + r*Math.cos(v);
+                    m.addVertex(d*Math.cos(u), r*Math.sin(v), d*Math.sin(u));
+                }
+            }
+            for (int i=0;i<major;i++){
+                int ni = (i+1)%major;
+                for (int j=0;j<minor;j++){
+                    int nj = (j+1)%minor, a = i*minor+j;
+                    m.addEdge(a, i*minor+nj);
+                    m.addEdge(a, ni*minor+j);
+                    m.addPolygon(new int[]{a, i*minor+nj, ni*minor+nj, ni*minor+j}, 4);
+                }
+            }
+            return m.trim();
+        }
+        // «суп» из edges коротких отрезков в кубе со стороной size: вершины (по ~4 на клетку) идут клетками
+        // кубической сетки змейкой, так что соседние по номеру клетки соседствуют и в пространстве; ребро
+        // соединяет вершину со случайной из 8 следующих по номеру (у конца нумерации — предыдущих): при ~4
+        // вершинах на клетку это та же клетка или одна из двух ближайших по змейке. Граней нет; seed задаёт всю модель
+        static WireModel randomSoup(int edges, double size, long seed){
+            edges = Math.max(1, edges);
+            int V = Math.max(9, edges/2);
+            int cells = Math.max(1, (int)Math.cbrt(V/4.0));
+            long cells3 = (long)cells*cells*cells;
+            double cell = size/cells, o = -size/2;
+            Random rnd = new Random(seed);
+            WireModel m = new WireModel(V, edges);
+            for (int i=0;i<V;i++){
+                long c = i*cells3/V;
+                int cx = (int)(c % cells), cy = (int)(c / cells % cells), cz = (int)(c / cells / cells);
+                if ((cz & 1) == 1) cy = cells-1-cy;
+                if (((c / cells) & 1) == 1) cx = cells-1-cx;
+                m.addVertex(o + (cx+rnd.nextDouble())*cell, o + (cy+rnd.nextDouble())*cell, o + (cz+rnd.nextDouble())*cell);
+            }
+            for (int e=0;e<edges;e++){
+                int a = rnd.nextInt(V), k = rnd.nextInt(8);
+                int b = a + 1 + k;
+                if (b >= V) b = Math.max(0, a - 1 - k);
+                m.addEdge(a, b);
+            }
+            return m.trim();
+        }
+        // объёмный текст из letters букв B (как letterB, с той же долей толщины), строками по ~sqrt(letters) букв;
+        // блок текста вписан в квадрат со стороной size в плоскости XY с центром в начале координат
+        static WireModel text(int letters, double size){
+            letters = Math.max(1, letters);
+            int cols = (int)Math.ceil(Math.sqrt(letters)), rows = (letters + cols - 1)/cols;
+            double pitchX = 1.3, pitchY = 1.5*1.3;
+            double s = size / Math.max(cols*pitchX, rows*pitchY);
+            double ox = -cols*pitchX*s/2, oy = rows*pitchY*s/2;
+            WireModel m = new WireModel(24*letters, 36*letters);
+            for (int k=0;k<letters;k++)
+                addLetterB(m, ox + (k % cols)*pitchX*s, oy - (k / cols + 1)*pitchY*s, s, s/1.5);
+            return m.trim();
+        }
+        // модель заданного вида примерно с edges рёбрами и размером порядка 3 (как у gridWithEdges):
+        // grid, sphere, torus, soup, text
+        static WireModel generate(String kind, int edges){
+            switch (kind){
+                case "grid":   return gridWithEdges(edges, 3);
+                case "sphere": { int n = Math.max(2, (int)Math.round(Math.sqrt(edges/4.0))); return uvSphere(n, 2*n, 1.5); }
+                case "torus":  { int n = Math.max(3, (int)Math.round(Math.sqrt(edges/4.0))); return torus(2*n, n, 1.1, 0.4); }
+                case "soup":   return randomSoup(edges, 3, 42);
+                case "text":   return text(Math.max(1, Math.round(edges/36f)), 3);
+                default: throw new IllegalArgumentException("Неизвестный вид модели: "+kind);
+            }
+        }
+        Vec3 centroid(){
+            double sx=0,sy=0,sz=0;
+            for(int i=0,n3=3*vertexCount;i<n3;i+=3){ sx+=xyz[i]; sy+=xyz[i+1]; sz+=xyz[i+2]; }
+            int n=vertexCount; return new Vec3(sx/n,sy/n,sz/n);
+        }
+    }
+
+    // ---------- Загрузка моделей ----------
+    // Wavefront OBJ (строки v / l / f; грани превращаются в рёбра без повторов и сохраняются веером
+    // треугольников) и компактный двоичный формат WIRE, который читается через FileChannel.map:
+    //   int magic 'WIRE', int версия, int число вершин V, int число рёбер E, [версия 2: int число граней F,]
+    //   float[3V] координаты, int[2E] индексы рёбер, [int[3F] индексы треугольников]; всё little-endian.
+    // Модель без граней пишется версией 1.
+    static class ModelIO {
+        static final int WIRE_MAGIC = 0x45524957, WIRE_VERSION = 1, WIRE_VERSION_FACES = 2, WIRE_HEADER = 16;
+
+        static WireModel read(Path path) throws IOException {
+            return path.toString().toLowerCase(Locale.ROOT).endsWith(".obj") ? readObj(path) : readWire(path);
+        }
+
+        // построчное чтение: в памяти только упакованные массивы модели и множество рёбер
+        static WireModel readObj(Path path) throws IOException {
+            WireModel m = new WireModel(1024, 1024);
+            EdgeSet seen = new EdgeSet();
+            int[] poly = new int[16];
+            double[] v3 = new double[3];
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)){
+                String line;
+                int lineNo = 0;
+                while ((line = in.readLine()) != null){
+                    lineNo++;
+                    int i = skipSpaces(line, 0);
+                    if (i+1 >= line.length() || line.charAt(i+1) > ' ') continue;   // не v/l/f (vt, vn, usemtl, ...)
+                    char kind = line.charAt(i);
+                    try {
+                        if (kind == 'v'){
+                            int p = i+1;
+                            for (int k=0;k<3;k++){
+                                p = skipSpaces(line, p);
+                                int e = tokenEnd(line, p);
+                                v3[k] = Double.parseDouble(line.substring(p, e));
+                                p = e;
+                            }
+                            m.addVertex(v3[0], v3[1], v3[2]);
+                        } else if (kind == 'l' || kind == 'f'){
+                            int n = 0;
+                            for (int p = skipSpaces(line, i+1); p < line.length(); p = skipSpaces(line, p)){
+                                int e = tokenEnd(line, p), slash = line.indexOf('/', p);
+                                int idx = Integer.parseInt(line.substring(p, slash >= 0 && slash < e ? slash : e));
+                                if (n == poly.length) poly = Arrays.copyOf(poly, 2*n);
+                                poly[n++] = idx < 0 ? m.vertexCount + idx : idx - 1;
+                                p = e;
+                            }
+                            int segs = kind == 'f' && n > 2 ? n : n-1;   // грань замыкается, ломаная — нет
+                            for (int k=0;k<segs;k++){
+                                int a = poly[k], b = poly[(k+1)%n];
+                                if (a != b && seen.add(a, b)) m.addEdge(a, b);
+                            }
+                            if (kind == 'f') m.addPolygon(poly, n);
+                        }
+                    } catch (RuntimeException ex){
+                        throw new IOException(path + ":" + lineNo + ": " + ex.getMessage(), ex);
+                    }
+                }
+            }
+            return m.trim();
+        }
+        private static int skipSpaces(String s, int i){
+            while (i < s.length() && s.charAt(i) <= ' ') i++;
+            return i;
+        }
+        private static int tokenEnd(String s, int i){
+            while (i < s.length() && s.charAt(i) > ' ') i++;
+            return i;
+        }
+
+        // файл отображается в память; массивы модели заполняются массовым чтением из отображения
+        static WireModel readWire(Path path) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+                long size = ch.size();
+                if (size < WIRE_HEADER) throw new IOException("Слишком короткий файл: " + path);
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (buf.getInt(0) != WIRE_MAGIC) throw new IOException("Не файл WIRE: " + path);
+                int version = buf.getInt(4);
+                if (version != WIRE_VERSION && version != WIRE_VERSION_FACES) throw new IOException("Неподдерживаемая версия WIRE: " + version);
+                int header = version == WIRE_VERSION ? WIRE_HEADER : WIRE_HEADER + 4;
+                if (size < header) throw new IOException("Слишком короткий файл: " + path);
+                int V = buf.getInt(8), E = buf.getInt(12), F = version == WIRE_VERSION ? 0 : buf.getInt(16);
+                if (V < 0 || E < 0 || F < 0 || size != header + 12L*V + 8L*E + 12L*F)
+                    throw new IOException("Размер файла не совпадает с заголовком: " + path);
+
+                buf.position(header);
+                // координаты одним массовым чтением во float[], из него — xyz и копии по осям для packedProjection
+                float[] raw = new float[3*V];
+                buf.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(raw);
+                double[] xyz = new double[3*V];
+                float[] xs = new float[V], ys = new float[V], zs = new float[V];
+                for (int i=0, j=0; i<V; i++, j+=3){
+                    xs[i] = raw[j]; ys[i] = raw[j+1]; zs[i] = raw[j+2];
+                    xyz[j] = raw[j]; xyz[j+1] = raw[j+1]; xyz[j+2] = raw[j+2];
+                }
+
+                buf.position(header + 12*V);
+                IntBuffer ints = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                int[] edgeIdx = new int[2*E], faceIdx = new int[3*F];
+                ints.get(edgeIdx).get(faceIdx);
+                for (int v : edgeIdx) if (v < 0 || v >= V) throw new IOException("Индекс вершины вне диапазона: " + v);
+                for (int v : faceIdx) if (v < 0 || v >= V) throw new IOException("Индекс вершины вне диапазона: " + v);
+                WireModel m = new WireModel(xyz, V, edgeIdx, E);
+                m.faceIdx = faceIdx; m.faceCount = F;
+                m.px = xs; m.py = ys; m.pz = zs;
+                return m;
+            }
+        }
+
+        static void writeWire(WireModel m, Path path) throws IOException {
+            int F = m.faceCount, header = F > 0 ? WIRE_HEADER + 4 : WIRE_HEADER;
+            long size = header + 12L*m.vertexCount + 8L*m.edgeCount + 12L*F;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(WIRE_MAGIC).putInt(F > 0 ? WIRE_VERSION_FACES : WIRE_VERSION).putInt(m.vertexCount).putInt(m.edgeCount);
+                if (F > 0) buf.putInt(F);
+                for (int i=0, n=3*m.vertexCount; i<n; i++) buf.putFloat((float)m.xyz[i]);
+                buf.asIntBuffer().put(m.edgeIdx, 0, 2*m.edgeCount).put(m.faceIdx, 0, 3*F);
+                buf.force();
+            }
+        }
+
+        // java Affine --convert model.obj model.wire
+        static void convert(String[] args) throws IOException {
+            if (args.length != 2) throw new IllegalArgumentException("Ожидалось: --convert вход.obj выход.wire");
+            long t0 = System.nanoTime();
+            WireModel m = readObj(Paths.get(args[0]));
+            long t1 = System.nanoTime();
+            writeWire(m, Paths.get(args[1]));
+            long t2 = System.nanoTime();
+            System.out.println(String.format(Locale.US, "%d vertices, %d edges; read %.1f ms, write %.1f ms",
+                    m.vertexCount, m.edgeCount, (t1-t0)*1e-6, (t2-t1)*1e-6));
+        }
+
+        // множество неориентированных рёбер: открытая адресация по ключу (min << 32) | max, 0 — пусто
+        static final class EdgeSet {
+            long[] keys = new long[1 << 12];
+            int size;
+            boolean add(int a, int b){
+                long key = ((long)Math.min(a, b) << 32) | Math.max(a, b);
+                if (key == 0) key = Long.MIN_VALUE;   // ребро (0,0) не встречается, но ключ 0 занят под «пусто»
+                if (2*(size+1) > keys.length) grow();
+                int mask = keys.length-1;
+                for (int i = mix(key) & mask; ; i = (i+1) & mask){
+                    if (keys[i] == key) return false;
+                    if (keys[i] == 0){ keys[i] = key; size++; return true; }
+                }
+            }
+            private void grow(){
+                long[] old = keys;
+                keys = new long[old.length*2];
+                int mask = keys.length-1;
+                for (long k : old){
+                    if (k == 0) continue;
+                    int i = mix(k) & mask;
+                    while (keys[i] != 0) i = (i+1) & mask;
+                    keys[i] = k;
+                }
+            }
+            private static int mix(long k){
+                k *= 0x9E3779B97F4A7C15L;
+                return (int)(k ^ (k >>> 32));
+            }
+        }
+    }
+
+    // ---------- Иерархия ограничивающих объёмов ----------
+    // BVH по рёбрам модели: узлы — AABB в координатах модели. Рёбра поддерева любого узла лежат подряд
+    // в order[start .. start+count), поэтому целиком видимое поддерево выводится без обхода.
+    static class EdgeBVH {
+        static final int LEAF = 16;
+        static final int OUTSIDE = 0, INTERSECT = 1, INSIDE = 2;
+
+        final int[] order;
+        double[] box = new double[6*64];    // minX, minY, minZ, maxX, maxY, maxZ
+        int[] left = new int[64];           // -1 — лист; правый потомок всегда left+1
+        int[] start = new int[64], count = new int[64];
+        int nodeCount = 1;
+
+        EdgeBVH(WireModel m){
+            int E = m.edgeCount;
+            order = new int[E];
+            double[] cent = new double[3*Math.max(1, E)];
+            for (int e=0; e<E; e++){
+                order[e] = e;
+                int a = 3*m.edgeIdx[2*e], b = 3*m.edgeIdx[2*e+1];
+                cent[3*e]   = 0.5*(m.xyz[a]+m.xyz[b]);
+                cent[3*e+1] = 0.5*(m.xyz[a+1]+m.xyz[b+1]);
+                cent[3*e+2] = 0.5*(m.xyz[a+2]+m.xyz[b+2]);
+            }
+            buildNode(m, 0, 0, E, cent);
+        }
+        boolean isLeaf(int node){ return left[node] < 0; }
+
+        private void buildNode(WireModel m, int node, int s, int n, double[] cent){
+            start[node] = s; count[node] = n;
+            // границы по концам рёбер и по центрам (для выбора оси разбиения)
+            double[] b = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            double[] c = b.clone();
+            for (int k=s; k<s+n; k++){
+                int e = order[k];
+                for (int end=0; end<2; end++){
+                    int v = 3*m.edgeIdx[2*e+end];
+                    for (int i=0;i<3;i++){ b[i]=Math.min(b[i], m.xyz[v+i]); b[i+3]=Math.max(b[i+3], m.xyz[v+i]); }
+                }
+                for (int i=0;i<3;i++){ c[i]=Math.min(c[i], cent[3*e+i]); c[i+3]=Math.max(c[i+3], cent[3*e+i]); }
+            }
+            if (n==0) Arrays.fill(b, 0);
+            System.arraycopy(b, 0, box, 6*node, 6);
+            if (n <= LEAF){ left[node] = -1; return; }
+
+            int axis = 0;
+            for (int i=1;i<3;i++) if (c[i+3]-c[i] > c[axis+3]-c[axis]) axis = i;
+            int half = n/2;
+            select(cent, axis, s, s+n-1, s+half);
+
+            int l = nodeCount;
+            nodeCount += 2;
+            if (nodeCount > left.length){
+                int cap = left.length*2;
+                box = Arrays.copyOf(box, 6*cap); left = Arrays.copyOf(left, cap);
+                start = Arrays.copyOf(start, cap); count = Arrays.copyOf(count, cap);
+            }
+            left[node] = l;
+            buildNode(m, l, s, half, cent);
+            buildNode(m, l+1, s+half, n-half, cent);
+        }
+        // частичная сортировка order[lo..hi] по центру вдоль оси: на месте k — медиана
+        private void select(double[] cent, int axis, int lo, int hi, int k){
+            while (hi > lo){
+                double pivot = cent[3*order[(lo+hi)>>>1]+axis];
+                int i = lo, j = hi;
+                while (i <= j){
+                    while (cent[3*order[i]+axis] < pivot) i++;
+                    while (cent[3*order[j]+axis] > pivot) j--;
+                    if (i <= j){ int t = order[i]; order[i] = order[j]; order[j] = t; i++; j--; }
+                }
+                if (k <= j) hi = j; else if (k >= i) lo = i; else return;
+            }
+        }
+
+        // положение AABB узла относительно 6 плоскостей (a,b,c,d), внутренность — a*x+b*y+c*z+d >= 0
+        int classify(int node, double[] planes){
+            int o = 6*node;
+            double x0=box[o], y0=box[o+1], z0=box[o+2], x1=box[o+3], y1=box[o+4], z1=box[o+5];
+            boolean inside = true;
+            for (int p=0; p<24; p+=4){
+                double a=planes[p], b=planes[p+1], c=planes[p+2], d=planes[p+3];
+                double far  = a*(a>0?x1:x0) + b*(b>0?y1:y0) + c*(c>0?z1:z0) + d;
+                if (far < 0) return OUTSIDE;
+                double near = a*(a>0?x0:x1) + b*(b>0?y0:y1) + c*(c>0?z0:z1) + d;
+                if (near < 0) inside = false;
+            }
+            return inside ? INSIDE : INTERSECT;
+        }
+    }
+
+    // ---------- Растровый вывод ----------
+    // Кадровый буфер int[] поверх BufferedImage (DataBufferInt): линии пишутся прямо в пиксели, минуя Java2D.
+    // Все методы рисования принимают прямоугольник отсечения [cx0,cx1) x [cy0,cy1) внутри кадра.
+    // drawClipped* и fillDepth не трогают состояние объекта, кроме пикселей и глубины внутри прямоугольника,
+    // — их можно звать из разных потоков для непересекающихся прямоугольников.
+    static class Raster {
+        BufferedImage image;
+        int[] px = new int[0];
+        int W, H;
+        // буфер глубины для удаления невидимых линий: 1/w ближайшей грани в пикселе, 0 — граней нет.
+        // 1/w линейна по экрану, поэтому интерполируется вдоль отрезка и по треугольнику без деления.
+        // Создаётся при первом обращении и живёт, пока не изменится размер кадра
+        float[] depth;
+        // ребро видно, если его 1/w не меньше глубины грани с этим относительным допуском
+        static final double DEPTH_TOLERANCE = 1e-3;
+
+        void ensureSize(int W, int H){
+            if (image != null && this.W == W && this.H == H) return;
+            image = new BufferedImage(Math.max(1, W), Math.max(1, H), BufferedImage.TYPE_INT_RGB);
+            px = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            this.W = W; this.H = H;
+            depth = null;
+        }
+        void clear(int rgb){ Arrays.fill(px, rgb); }
+        // true — буфер глубины только что создан (заполнен нулями)
+        boolean ensureDepth(){
+            if (depth != null) return false;
+            depth = new float[px.length];
+            return true;
+        }
+        void clearDepth(int cx0, int cy0, int cx1, int cy1){
+            for (int y=cy0; y<cy1; y++) Arrays.fill(depth, y*W+cx0, y*W+cx1, 0f);
+        }
+
+        // треугольник T[o..o+8] (x, y, 1/w трёх вершин) в буфер глубины по центрам пикселей внутри
+        // [cx0,cx1) x [cy0,cy1); пишется глубина, уменьшенная на её изменение за пиксель, — рёбра самой
+        // грани (их пиксели сдвинуты от центров до полупикселя) не прячутся за ней
+        void fillDepth(double[] T, int o, int cx0, int cy0, int cx1, int cy1){
+            double x0=T[o], y0=T[o+1], z0=T[o+2], x1=T[o+3], y1=T[o+4], z1=T[o+5], x2=T[o+6], y2=T[o+7], z2=T[o+8];
+            double area = (x1-x0)*(y2-y0) - (x2-x0)*(y1-y0);
+            if (!(Math.abs(area) > 1e-12)) return;
+            if (area < 0){
+                double t;
+                t=x1; x1=x2; x2=t; t=y1; y1=y2; y2=t; t=z1; z1=z2; z2=t;
+                area = -area;
+            }
+            int ix0 = Math.max(cx0, (int)Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5));
+            int ix1 = Math.min(cx1-1, (int)Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5));
+            int iy0 = Math.max(cy0, (int)Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5));
+            int iy1 = Math.min(cy1-1, (int)Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5));
+            if (ix0 > ix1 || iy0 > iy1) return;
+            // плоскость глубины и рёберные функции (> 0 внутри) в центре первого пикселя, дальше — приращениями
+            double zx = ((z1-z0)*(y2-y0) - (z2-z0)*(y1-y0))/area, zy = ((z2-z0)*(x1-x0) - (z1-z0)*(x2-x0))/area;
+            double cx = ix0+0.5, cy = iy0+0.5;
+            double zRow = z0 + zx*(cx-x0) + zy*(cy-y0) - (Math.abs(zx) + Math.abs(zy));
+            double e0 = (x1-x0)*(cy-y0) - (y1-y0)*(cx-x0), e0x = y0-y1, e0y = x1-x0;
+            double e1 = (x2-x1)*(cy-y1) - (y2-y1)*(cx-x1), e1x = y1-y2, e1y = x2-x1;
+            double e2 = (x0-x2)*(cy-y2) - (y0-y2)*(cx-x2), e2x = y2-y0, e2y = x0-x2;
+            float[] zb = depth;
+            int n = ix1-ix0;
+            for (int y=iy0; y<=iy1; y++){
+                // пролёт строки: пиксели k, где все три функции e + ex*k >= 0
+                int lo = spanLo(e0, e0x, spanLo(e1, e1x, spanLo(e2, e2x, 0)));
+                int hi = spanHi(e0, e0x, spanHi(e1, e1x, spanHi(e2, e2x, n)));
+                if (lo <= hi){
+                    double z = zRow + zx*lo;
+                    for (int i=y*W+ix0+lo, end=y*W+ix0+hi; i<=end; i++){
+                        if (z>zb[i]) zb[i] = (float)z;
+                        z+=zx;
+                    }
+                }
+                e0+=e0y; e1+=e1y; e2+=e2y; zRow+=zy;
+            }
+        }
+        private static int spanLo(double e, double ex, int lo){
+            if (ex > 0) return Math.max(lo, (int)Math.ceil(-e/ex));
+            return ex == 0 && e < 0 ? Integer.MAX_VALUE : lo;
+        }
+        private static int spanHi(double e, double ex, int hi){
+            if (ex < 0) return (int)Math.min(hi, Math.floor(e/-ex));
+            return ex == 0 && e < 0 ? -1 : hi;
+        }
+
+        // отсечение отрезка по кадру (с запасом в пиксель) методом Лианга–Барски; false — отрезок вне кадра
+        // результат пишется в out[off..off+3], t0/t1 — положение новых концов на исходном отрезке
+        private final double[] clipped = new double[4];
+        double t0, t1;
+        boolean clipToFrame(double x0, double y0, double x1, double y1, double[] out, int off){
+            if (Double.isNaN(x0) || Double.isNaN(y0) || Double.isNaN(x1) || Double.isNaN(y1)) return false;
+            double dx = x1-x0, dy = y1-y0;
+            t0 = 0; t1 = 1;
+            if (!clipT(-dx, x0+1) || !clipT(dx, W-x0) || !clipT(-dy, y0+1) || !clipT(dy, H-y0)) return false;
+            out[off]=x0+t0*dx; out[off+1]=y0+t0*dy; out[off+2]=x0+t1*dx; out[off+3]=y0+t1*dy;
+            return true;
+        }
+        private boolean clipT(double p, double q){
+            if (p==0) return q>=0;
+            double t = q/p;
+            if (p<0){ if (t>t1) return false; if (t>t0) t0=t; }
+            else    { if (t<t0) return false; if (t<t1) t1=t; }
+            return true;
+        }
+
+        // Брезенхэм: шаг по ведущей оси, побочная координата — round(i*d/D) с целочисленной ошибкой.
+        // Перебор ограничен прямоугольником отсечения, так что кусок линии в тайле стоит O(размер тайла).
+        void drawLine(double x0, double y0, double x1, double y1, int rgb, int cx0, int cy0, int cx1, int cy1){
+            if (clipToFrame(x0, y0, x1, y1, clipped, 0))
+                drawClippedLine(clipped[0], clipped[1], clipped[2], clipped[3], rgb, cx0, cy0, cx1, cy1);
+        }
+        // отрезок, уже отсечённый по кадру (clipToFrame)
+        void drawClippedLine(double x0, double y0, double x1, double y1, int rgb, int cx0, int cy0, int cx1, int cy1){
+            drawClippedLine(x0, y0, 0, x1, y1, 0, null, rgb, cx0, cy0, cx1, cy1);
+        }
+        // то же с проверкой глубины: z0/z1 — 1/w концов, пиксель рисуется, только если он не за гранью в depth
+        void drawClippedLineDepth(double x0, double y0, double z0, double x1, double y1, double z1, int rgb,
+                                  int cx0, int cy0, int cx1, int cy1){
+            drawClippedLine(x0, y0, z0, x1, y1, z1, depth, rgb, cx0, cy0, cx1, cy1);
+        }
+        private void drawClippedLine(double x0, double y0, double z0, double x1, double y1, double z1, float[] zb,
+                                     int rgb, int cx0, int cy0, int cx1, int cy1){
+            int ix0=(int)Math.floor(x0+0.5), iy0=(int)Math.floor(y0+0.5);
+            int ix1=(int)Math.floor(x1+0.5), iy1=(int)Math.floor(y1+0.5);
+            int dx = Math.abs(ix1-ix0), dy = Math.abs(iy1-iy0);
+            int sx = ix1>=ix0 ? 1 : -1, sy = iy1>=iy0 ? 1 : -1;
+            double dz = (z1-z0)/Math.max(1, Math.max(dx, dy));
+            if (dx>=dy) line(ix0, iy0, dx, dy, sx, sy, 1, W, rgb, cx0, cx1, cy0, cy1, zb, z0, dz);
+            else        line(iy0, ix0, dy, dx, sy, sx, W, 1, rgb, cy0, cy1, cx0, cx1, zb, z0, dz);
+        }
+        // u — ведущая ось, v — побочная; du/dv — шаг индекса в px при сдвиге на 1 по u/v;
+        // zb != null — проверка глубины, z0 + i*dz — 1/w i-го пикселя
+        private void line(int u0, int v0, int D, int d, int su, int sv, int du, int dv, int rgb,
+                          int cu0, int cu1, int cv0, int cv1, float[] zb, double z0, double dz){
+            int iLo, iHi;
+            if (su>0){ iLo=Math.max(0, cu0-u0); iHi=Math.min(D, cu1-1-u0); }
+            else     { iLo=Math.max(0, u0-(cu1-1)); iHi=Math.min(D, u0-cu0); }
+            if (d>0){
+                // по побочной оси: смещение k = |v-v0| ≈ i*d/D, берём диапазон i с запасом в шаг
+                int kLo, kHi;
+                if (sv>0){ kLo=cv0-v0; kHi=cv1-1-v0; } else { kLo=v0-(cv1-1); kHi=v0-cv0; }
+                if (kHi<0 || kLo>d) return;
+                iLo = Math.max(iLo, (int)Math.floor((kLo-1)*(double)D/d));
+                iHi = Math.min(iHi, (int)Math.ceil((kHi+1)*(double)D/d));
+            }
+            if (iLo>iHi) return;
+            long twoD = 2L*Math.max(D, 1), num = 2L*iLo*d + D;
+            int v = v0 + sv*(int)(num/twoD);
+            long r = num % twoD;
+            int u = u0 + su*iLo;
+            int[] px = this.px;
+            for (int i=iLo; i<=iHi; i++){
+                if (v>=cv0 && v<cv1){
+                    int p = u*du + v*dv;
+                    if (zb == null || visible(z0 + i*dz, zb[p])) px[p] = rgb;
+                }
+                u += su; r += 2L*d;
+                if (r>=twoD){ r -= twoD; v += sv; }
+            }
+        }
+
+        // Сглаженная линия Ву: яркость делится между двумя соседними пикселями побочной оси
+        void drawLineAA(double x0, double y0, double x1, double y1, int rgb, int cx0, int cy0, int cx1, int cy1){
+            if (clipToFrame(x0, y0, x1, y1, clipped, 0))
+                drawClippedLineAA(clipped[0], clipped[1], clipped[2], clipped[3], rgb, cx0, cy0, cx1, cy1);
+        }
+        void drawClippedLineAA(double x0, double y0, double x1, double y1, int rgb, int cx0, int cy0, int cx1, int cy1){
+            drawClippedLineAA(x0, y0, 0, x1, y1, 0, null, rgb, cx0, cy0, cx1, cy1);
+        }
+        void drawClippedLineAADepth(double x0, double y0, double z0, double x1, double y1, double z1, int rgb,
+                                    int cx0, int cy0, int cx1, int cy1){
+            drawClippedLineAA(x0, y0, z0, x1, y1, z1, depth, rgb, cx0, cy0, cx1, cy1);
+        }
+        private void drawClippedLineAA(double x0, double y0, double z0, double x1, double y1, double z1, float[] zb,
+                                       int rgb, int cx0, int cy0, int cx1, int cy1){
+            boolean steep = Math.abs(y1-y0) > Math.abs(x1-x0);
+            double t;
+            if (steep){ t=x0; x0=y0; y0=t; t=x1; x1=y1; y1=t; }
+            if (x0>x1){ t=x0; x0=x1; x1=t; t=y0; y0=y1; y1=t; t=z0; z0=z1; z1=t; }
+            double dx = x1-x0, grad = dx==0 ? 1 : (y1-y0)/dx, zgrad = dx==0 ? 0 : (z1-z0)/dx;
+            int u0 = steep ? cy0 : cx0, u1 = steep ? cy1 : cx1;
+
+            // концы
+            double xend = Math.floor(x0+0.5), yend = y0 + grad*(xend-x0), xgap = 1 - frac(x0+0.5);
+            int xp1 = (int)xend; double yFirst = yend, zFirst = z0 + zgrad*(xend-x0);
+            plotPair(steep, xp1, yend, xgap, rgb, cx0, cy0, cx1, cy1, zb, zFirst);
+            xend = Math.floor(x1+0.5); yend = y1 + grad*(xend-x1); xgap = frac(x1+0.5);
+            int xp2 = (int)xend;
+            if (xp2 != xp1) plotPair(steep, xp2, yend, xgap, rgb, cx0, cy0, cx1, cy1, zb, z1 + zgrad*(xend-x1));
+
+            // середина: y считается от первого конца, а не накапливается, — тайлы дают тот же результат
+            int lo = Math.max(xp1+1, u0), hi = Math.min(xp2-1, u1-1);
+            for (int x=lo; x<=hi; x++)
+                plotPair(steep, x, yFirst + grad*(x-xp1), 1.0, rgb, cx0, cy0, cx1, cy1, zb, zFirst + zgrad*(x-xp1));
+        }
+        private void plotPair(boolean steep, int x, double y, double cover, int rgb, int cx0, int cy0, int cx1, int cy1,
+                              float[] zb, double z){
+            int iy = (int)Math.floor(y);
+            double f = y - iy;
+            plot(steep, x, iy,   (1-f)*cover, rgb, cx0, cy0, cx1, cy1, zb, z);
+            plot(steep, x, iy+1, f*cover,     rgb, cx0, cy0, cx1, cy1, zb, z);
+        }
+        private void plot(boolean steep, int x, int y, double alpha, int rgb, int cx0, int cy0, int cx1, int cy1,
+                          float[] zb, double z){
+            int X = steep ? y : x, Y = steep ? x : y;
+            if (X<cx0 || X>=cx1 || Y<cy0 || Y>=cy1) return;
+            int a = (int)(alpha*255 + 0.5);
+            if (a<=0) return;
+            int i = Y*W + X, d = px[i], na = 255-a;
+            if (zb != null && !visible(z, zb[i])) return;
+            int r = (((rgb>>16)&255)*a + ((d>>16)&255)*na)/255;
+            int g = (((rgb>>8)&255)*a  + ((d>>8)&255)*na)/255;
+            int b = ((rgb&255)*a       + (d&255)*na)/255;
+            px[i] = (r<<16)|(g<<8)|b;
+        }
+        private static double frac(double v){ return v - Math.floor(v); }
+        private static boolean visible(double z, float faceZ){ return z + z*DEPTH_TOLERANCE >= faceZ; }
+    }
+
+    // ---------- Замеры кадра ----------
+    // Время стадий кадра: скользящие средние, FPS и p50/p99 по последним кадрам для HUD,
+    // плюс события JFR (affine.RenderStage) на каждую стадию, если они включены в записи.
+    static class FrameProfiler {
+        enum Stage {
+            MATRICES("матрицы"), PROJECTION("проекция"), AXES("оси"), EDGES("рёбра"), ANIMATION("анимация");
+            final String title;
+            Stage(String title){ this.title = title; }
+        }
+        static final int WINDOW = 240;
+        static final EventType JFR_TYPE = EventType.getEventType(RenderStageEvent.class);
+
+        final double[] avgMs = new double[Stage.values().length];
+        private final long[] stageStart = new long[avgMs.length];
+        private final RenderStageEvent[] events = new RenderStageEvent[avgMs.length];
+
+        // длительности и моменты окончания последних WINDOW кадров (кольцевой буфер)
+        private final long[] frameNs = new long[WINDOW], frameEndNs = new long[WINDOW], sorted = new long[WINDOW];
+        private int frames, head;
+        private long frameStart;
+        long frameNo;
+
+        void beginFrame(){
+            frameStart = System.nanoTime();
+        }
+        void endFrame(){
+            long now = System.nanoTime();
+            frameNs[head] = now - frameStart;
+            frameEndNs[head] = now;
+            head = (head+1) % WINDOW;
+            if (frames < WINDOW) frames++;
+            frameNo++;
+        }
+        void begin(Stage s){
+            int i = s.ordinal();
+            if (JFR_TYPE.isEnabled()){
+                RenderStageEvent ev = new RenderStageEvent();
+                ev.begin();
+                events[i] = ev;
+            }
+            stageStart[i] = System.nanoTime();
+        }
+        void end(Stage s){
+            int i = s.ordinal();
+            double ms = (System.nanoTime() - stageStart[i]) * 1e-6;
+            avgMs[i] += (ms - avgMs[i]) * 0.05;
+            RenderStageEvent ev = events[i];
+            if (ev != null){
+                events[i] = null;
+                ev.end();
+                if (ev.shouldCommit()){ ev.stage = s.name(); ev.frame = frameNo; ev.commit(); }
+            }
+        }
+
+        double fps(){
+            if (frames < 2) return 0;
+            long last = frameEndNs[(head-1+WINDOW) % WINDOW], first = frameEndNs[(head-frames+WINDOW) % WINDOW];
+            return last == first ? 0 : (frames-1) / ((last-first) * 1e-9);
+        }
+        // перцентиль длительности кадра, мс
+        double percentileMs(double q){
+            if (frames == 0) return 0;
+            System.arraycopy(frameNs, 0, sorted, 0, frames);
+            Arrays.sort(sorted, 0, frames);
+            return sorted[(int)Math.min(frames-1, Math.round(q*(frames-1)))] * 1e-6;
+        }
+
+        static final Color HUD_BG = new Color(255,255,255,220), HUD_FG = new Color(40,40,40),
+                HUD_BAR = new Color(0,120,255), HUD_P99 = new Color(220,50,47);
+        static final int BINS = 24;
+        private final int[] bins = new int[BINS];
+
+        void drawHud(Graphics2D g2, int x, int y){
+            double p50 = percentileMs(0.50), p99 = percentileMs(0.99);
+            int w = 230, lineH = 14, h = lineH*(3+avgMs.length) + 50;
+            g2.setColor(HUD_BG); g2.fillRect(x, y, w, h);
+            g2.setColor(HUD_FG); g2.drawRect(x, y, w, h);
+            g2.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+            int ty = y + lineH;
+            g2.drawString(String.format(Locale.US, "FPS %6.1f   кадров %d", fps(), frameNo), x+6, ty); ty += lineH;
+            g2.drawString(String.format(Locale.US, "кадр p50 %6.2f  p99 %6.2f мс", p50, p99), x+6, ty); ty += lineH;
+            for (Stage s : Stage.values()){
+                g2.drawString(String.format(Locale.US, "%-10s %8.3f мс", s.title, avgMs[s.ordinal()]), x+6, ty);
+                ty += lineH;
+            }
+
+            // гистограмма длительностей кадра в окне; шкала до 1.5 * p99
+            double maxMs = Math.max(1.0, 1.5*p99), binMs = maxMs / BINS;
+            Arrays.fill(bins, 0);
+            int top = 1;
+            for (int i=0;i<frames;i++){
+                int b = (int)Math.min(BINS-1, frameNs[i]*1e-6 / binMs);
+                top = Math.max(top, ++bins[b]);
+            }
+            int hx = x+6, hy = ty+36, hw = w-12, bw = hw / BINS;
+            g2.setColor(HUD_BAR);
+            for (int b=0;b<BINS;b++){
+                int bh = bins[b]*36/top;
+                g2.fillRect(hx + b*bw, hy - bh, bw-1, bh);
+            }
+            g2.setColor(HUD_FG);
+            g2.drawLine(hx + (int)(p50/binMs*bw), hy-38, hx + (int)(p50/binMs*bw), hy);
+            g2.setColor(HUD_P99);
+            g2.drawLine(hx + (int)(p99/binMs*bw), hy-38, hx + (int)(p99/binMs*bw), hy);
+            g2.setColor(HUD_FG);
+            g2.drawString(String.format(Locale.US, "0 … %.1f мс", maxMs), hx, hy + lineH - 2);
+        }
+    }
+
+    @Name("affine.RenderStage")
+    @Label("Render Stage")
+    @Category({"Affine", "Rendering"})
+    @Description("Одна стадия кадра каркасного рендерера")
+    static class RenderStageEvent extends jdk.jfr.Event {
+        @Label("Stage") String stage;
+        @Label("Frame") long frame;
+    }
+
+    // ---------- Граф сцены ----------
+    // Узлы с локальной матрицей; мировая матрица кэшируется и пересчитывается только у изменённых
+    // узлов и их потомков. Копии (инстансы) ссылаются на одну и ту же WireModel — буферы вершин
+    // и рёбер, BVH и float-копия координат общие.
+    static class SceneNode {
+        final Mat4 local, world = new Mat4();
+        WireModel model;      // null — узел-группа
+        SceneNode parent;
+        final ArrayList<SceneNode> children = new ArrayList<>();
+        boolean dirty = true;
+        // собственное вращение (ось в координатах родителя); local = spin.update()
+        Spin spin;
+        double spinDegPerSec;
+
+        SceneNode(WireModel model){ this(model, Mat4.identity()); }
+        SceneNode(WireModel model, Mat4 local){ this.model = model; this.local = local; }
+
+        SceneNode add(SceneNode child){
+            child.parent = this;
+            child.dirty = true;
+            children.add(child);
+            return child;
+        }
+        // local изменена снаружи
+        void invalidate(){ dirty = true; }
+        SceneNode setSpin(Pose base, Vec3 p1, Vec3 p2, double degPerSec){
+            spin = new Spin();
+            if (!spin.setAxis(p1, p2)) throw new IllegalArgumentException("Точки совпадают: ось нулевая.");
+            spin.rebase(base);
+            spinDegPerSec = degPerSec;
+            base.toMatrix(local);
+            dirty = true;
+            return this;
+        }
+    }
+
+    static class Scene {
+        final SceneNode root = new SceneNode(null);
+
+        // пересчитать мировые матрицы; возвращает число пересчитанных узлов
+        int update(){ return update(root, false); }
+        private static int update(SceneNode n, boolean parentChanged){
+            boolean changed = n.dirty || parentChanged;
+            int k = 0;
+            if (changed){
+                if (n.parent == null) n.world.set(n.local);
+                else n.world.mulInto(n.parent.world, n.local);
+                n.dirty = false;
+                k = 1;
+            }
+            ArrayList<SceneNode> ch = n.children;
+            for (int i=0, c=ch.size(); i<c; i++) k += update(ch.get(i), changed);
+            return k;
+        }
+
+        // шаг собственного вращения узлов
+        void animate(double dt){ animate(root, dt); }
+        private static void animate(SceneNode n, double dt){
+            if (n.spin != null && n.spinDegPerSec != 0){
+                n.spin.advance(dt, n.spinDegPerSec);
+                n.spin.update().toMatrix(n.local);
+                n.dirty = true;
+            }
+            ArrayList<SceneNode> ch = n.children;
+            for (int i=0, c=ch.size(); i<c; i++) animate(ch.get(i), dt);
+        }
+
+        // count копий модели кубической решёткой в кубе с центром и размером исходной модели;
+        // каждая копия крутится вокруг своей вертикали
+        static SceneNode instanceArray(WireModel model, int count){
+            SceneNode group = new SceneNode(null);
+            int k = Math.max(1, (int)Math.ceil(Math.cbrt(count)));
+            double[] P = model.xyz;
+            double minX=Double.MAX_VALUE, minY=minX, minZ=minX, maxX=-minX, maxY=maxX, maxZ=maxX;
+            for (int i=0, n3=3*model.vertexCount; i<n3; i+=3){
+                minX=Math.min(minX,P[i]);   maxX=Math.max(maxX,P[i]);
+                minY=Math.min(minY,P[i+1]); maxY=Math.max(maxY,P[i+1]);
+                minZ=Math.min(minZ,P[i+2]); maxZ=Math.max(maxZ,P[i+2]);
+            }
+            double extent = Math.max(1e-9, Math.max(maxX-minX, Math.max(maxY-minY, maxZ-minZ)));
+            double cx = (minX+maxX)/2, cy = (minY+maxY)/2, cz = (minZ+maxZ)/2;
+            double cell = extent/k, s = 0.7/k;
+            Pose pose = new Pose();
+            for (int i=0; i<count; i++){
+                double x = cx - extent/2 + cell*(i%k + 0.5), y = cy - extent/2 + cell*(i/k%k + 0.5), z = cz - extent/2 + cell*(i/(k*k) + 0.5);
+                SceneNode node = new SceneNode(model);
+                pose.setIdentity().preTranslate(-cx, -cy, -cz).preScale(s).preTranslate(x, y, z);
+                node.setSpin(pose, new Vec3(x, y, z), new Vec3(x, y+1, z), 30 + 60.0*((i*37)%11)/10);
+                group.add(node);
+            }
+            return group;
+        }
+    }
+
+    // ---------- Выбор под курсором ----------
+    // Равномерная сетка CELL x CELL пикселей над отрезками кадра (экранные координаты уже посчитаны):
+    // отрезок попадает во все клетки своей рамки, запрос смотрит только клетки вокруг курсора.
+    static class PickGrid {
+        static final int CELL = 16;
+        int cellsX, cellsY;
+        int[] cellStart = new int[1], cellCursor = new int[0], cellLines = new int[0];
+        int[] lineBox = new int[0];
+        long builtVersion = -1;
+
+        // результат последнего запроса: номер отрезка и его конец (0, 1) или -1, если ближе всего само ребро
+        int hitLine = -1, hitEnd = -1;
+
+        void build(double[] L, int n, int W, int H){
+            cellsX = Math.max(1, (W+CELL-1)/CELL); cellsY = Math.max(1, (H+CELL-1)/CELL);
+            int nc = cellsX*cellsY;
+            if (cellCursor.length < nc){ cellStart = new int[nc+1]; cellCursor = new int[nc]; }
+            if (lineBox.length < 4*n) lineBox = new int[4*n];
+            Arrays.fill(cellStart, 0, nc+1, 0);
+            for (int e=0; e<n; e++){
+                int o = 4*e;
+                double x0 = Math.min(L[o], L[o+2]), x1 = Math.max(L[o], L[o+2]);
+                double y0 = Math.min(L[o+1], L[o+3]), y1 = Math.max(L[o+1], L[o+3]);
+                if (x1 < 0 || y1 < 0 || x0 >= W || y0 >= H){ lineBox[o] = -1; continue; }
+                int cx0 = cellOf(x0, cellsX), cx1 = cellOf(x1, cellsX), cy0 = cellOf(y0, cellsY), cy1 = cellOf(y1, cellsY);
+                lineBox[o]=cx0; lineBox[o+1]=cy0; lineBox[o+2]=cx1; lineBox[o+3]=cy1;
+                for (int cy=cy0; cy<=cy1; cy++) for (int cx=cx0; cx<=cx1; cx++) cellStart[cy*cellsX+cx+1]++;
+            }
+            for (int c=0; c<nc; c++) cellStart[c+1] += cellStart[c];
+            int need = cellStart[nc];
+            if (cellLines.length < need) cellLines = new int[Math.max(need, cellLines.length + cellLines.length/2)];
+            System.arraycopy(cellStart, 0, cellCursor, 0, nc);
+            for (int e=0; e<n; e++){
+                int o = 4*e;
+                if (lineBox[o] < 0) continue;
+                for (int cy=lineBox[o+1]; cy<=lineBox[o+3]; cy++)
+                    for (int cx=lineBox[o]; cx<=lineBox[o+2]; cx++) cellLines[cellCursor[cy*cellsX+cx]++] = e;
+            }
+        }
+        private static int cellOf(double v, int cells){
+            return Math.max(0, Math.min(cells-1, (int)Math.floor(v) / CELL));
+        }
+
+        // ближайшая вершина (конец отрезка) в радиусе r, иначе ближайшее ребро в радиусе r
+        boolean pick(double[] L, double x, double y, double r){
+            hitLine = -1; hitEnd = -1;
+            double bestV = r*r, bestE = r*r;
+            int lineV = -1, endV = -1, lineE = -1;
+            int cx0 = cellOf(x-r, cellsX), cx1 = cellOf(x+r, cellsX), cy0 = cellOf(y-r, cellsY), cy1 = cellOf(y+r, cellsY);
+            for (int cy=cy0; cy<=cy1; cy++){
+                for (int cx=cx0; cx<=cx1; cx++){
+                    int c = cy*cellsX+cx;
+                    for (int k=cellStart[c], end=cellStart[c+1]; k<end; k++){
+                        int e = cellLines[k], o = 4*e;
+                        double d0 = dist2(x, y, L[o], L[o+1]), d1 = dist2(x, y, L[o+2], L[o+3]);
+                        if (d0 <= bestV){ bestV = d0; lineV = e; endV = 0; }
+                        if (d1 <= bestV){ bestV = d1; lineV = e; endV = 1; }
+                        double de = segDist2(x, y, L[o], L[o+1], L[o+2], L[o+3]);
+                        if (de <= bestE){ bestE = de; lineE = e; }
+                    }
+                }
+            }
+            if (lineV >= 0){ hitLine = lineV; hitEnd = endV; }
+            else hitLine = lineE;
+            return hitLine >= 0;
+        }
+        // то же перебором всех отрезков — для сравнения в бенчмарке
+        boolean pickBrute(double[] L, int n, double x, double y, double r){
+            hitLine = -1; hitEnd = -1;
+            double bestV = r*r, bestE = r*r;
+            int lineV = -1, endV = -1, lineE = -1;
+            for (int e=0; e<n; e++){
+                int o = 4*e;
+                double d0 = dist2(x, y, L[o], L[o+1]), d1 = dist2(x, y, L[o+2], L[o+3]);
+                if (d0 <= bestV){ bestV = d0; lineV = e; endV = 0; }
+                if (d1 <= bestV){ bestV = d1; lineV = e; endV = 1; }
+                double de = segDist2(x, y, L[o], L[o+1], L[o+2], L[o+3]);
+                if (de <= bestE){ bestE = de; lineE = e; }
+            }
+            if (lineV >= 0){ hitLine = lineV; hitEnd = endV; }
+            else hitLine = lineE;
+            return hitLine >= 0;
+        }
+        static double dist2(double x, double y, double px, double py){
+            double dx = x-px, dy = y-py;
+            return dx*dx + dy*dy;
+        }
+        static double segDist2(double x, double y, double ax, double ay, double bx, double by){
+            double dx = bx-ax, dy = by-ay, len2 = dx*dx + dy*dy;
+            double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, ((x-ax)*dx + (y-ay)*dy) / len2));
+            return dist2(x, y, ax + t*dx, ay + t*dy);
+        }
+    }
+
+    // ---------- Рендерер ----------
+    // Проекция и отрисовка без привязки к Swing: цель — любой Graphics2D (панель или BufferedImage)
+    static class Renderer {
+        // способ отрисовки рёбер
+        enum Backend {
+            JAVA2D("Java2D (сглаживание)"), RASTER("Брезенхэм"), RASTER_AA("Ву (сглаживание)");
+            final String title;
+            Backend(String title){ this.title = title; }
+            @Override public String toString(){ return title; }
+        }
+        Backend backend = Backend.JAVA2D;
+        final Raster raster = new Raster();
+        int backgroundRgb = 0xFFFFFF;
+
+        // многопоточная растеризация по тайлам: включается для моделей от parallelEdgeThreshold рёбер
+        static final int TILE = 64;
+        int parallelEdgeThreshold = 20_000;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        double[] segs = new double[0];      // отрезки, отсечённые по кадру, по 4 числа
+        int[] segBox = new int[0];          // диапазон тайлов отрезка: tx0, ty0, tx1, ty1 (tx0 < 0 — вне кадра)
+        int[] tileStart = new int[1], tileCursor = new int[0], tileEdges = new int[0];
+        int tilesX, tilesY;
+
+        // параллельная проекция вершин (тот же пул): части по projectionChunk вершин;
+        // включается от parallelVertexThreshold вершин и только если в пуле больше одного потока.
+        // Работает лишь в buildLinesAll, то есть при выключенных отсечении и удалении невидимых линий:
+        // путь с BVH проецирует вершины поштучно (clipVertex) и только в видимых листьях
+        int projectionChunk = 1 << 16;
+        int parallelVertexThreshold = 1 << 18;
+
+        // камера-орбита
+        double camRadius, camYaw, camPitch;
+        double fovY, zNear = 0.1, zFar = 100;
+
+        // кэш матриц камеры (см. updateCamera)
+        final Mat4 view = new Mat4(), proj = new Mat4(), VP = new Mat4(), MVP = new Mat4();
+        double cachedYaw = Double.NaN, cachedPitch, cachedRadius, cachedFovY, cachedNear, cachedFar;
+        int cachedW = -1, cachedH = -1;
+
+        // переиспользуемые буферы кадра
+        double[] screen = new double[0];
+        // проекция без отсечения: пакетом float SoA (по умолчанию) или поштучно в double
+        boolean packedProjection = true;
+        float[] screenX = new float[0], screenY = new float[0];
+        final Line2D.Double edgeLine = new Line2D.Double();
+        // отрезки кадра в экранных координатах, по 4 числа: x1, y1, x2, y2
+        double[] lines = new double[0];
+        int lineCount;
+        // происхождение отрезков: номер ребра модели и участки по узлам сцены (runStart[r] — первый отрезок узла)
+        int[] lineEdge = new int[0];
+        SceneNode[] runNode = new SceneNode[4];
+        WireModel[] runModel = new WireModel[4];    // модель участка (с LOD — выбранный уровень)
+        private WireModel lastModel;
+        int[] runStart = new int[5];
+        int runCount;
+        // версия отрезков: растёт, только когда изменилась какая-нибудь MVP, модель или размер кадра
+        long linesVersion;
+        private long frameSig, lastFrameSig;
+        int frameW, frameH;
+
+        // выбор под курсором по отрезкам последнего кадра
+        final PickGrid pickGrid = new PickGrid();
+        int hoverLine = -1, hoverEnd = -1;
+        long hoverVersion = -1;
+        static final Color HOVER_COLOR = new Color(255,140,0);
+        static final BasicStroke HOVER_STROKE = new BasicStroke(3f);
+
+        // отсечение по пирамиде видимости: BVH модели + обрезка рёбер ближней/дальней плоскостями
+        boolean frustumCulling = true;
+        final double[] frustum = new double[24];
+        double[] clip = new double[0];      // однородные координаты вершин, считаются лениво
+        int[] clipStamp = new int[0];
+        int frameStamp = 0;
+        int[] bvhStack = new int[64];
+        double halfW, halfH;
+
+        // счётчики последнего кадра
+        int statDrawn, statCulled, statClipped;
+
+        // уровень детализации: модель заменяется упрощённой (WireModel.lods), если клетка её кластеризации
+        // на экране не больше lodMinPx; ребро, оба конца которого попали в одну клетку lodMinPx x lodMinPx
+        // экрана, сливается в точку (её рисуют соседние рёбра) и не выводится
+        boolean lod = false;
+        double lodMinPx = 1.0;
+        private double lodInv;
+        int statLodSkipped, statSimplified;
+
+        // удаление невидимых линий (только растровые способы): грани моделей заносятся в буфер глубины
+        // raster.depth, рёбра рисуются лишь там, где не лежат за гранью. Отрезки при этом собираются через
+        // однородные координаты (как при отсечении) — там есть 1/w концов, — а LOD не подменяет модель,
+        // потому что у упрощённых уровней нет граней
+        boolean hiddenLines = false;
+        private boolean hiddenPass;
+        float[] lineDepth = new float[0];   // 1/w концов отрезков lines, по 2 числа
+        double[] tris = new double[0];      // треугольники граней кадра: x, y, 1/w трёх вершин, по 9 чисел
+        private final double[] facePoly = new double[12];   // грань после обрезки ближней плоскостью: x, y, w до 4 вершин
+        int triCount;
+        double[] segDepth = new double[0];  // 1/w концов отсечённых по кадру отрезков segs
+        int[] triBox = new int[0], triStart = new int[1], triCursor = new int[0], tileTris = new int[0];
+        boolean[] tileDepthUsed = new boolean[0];   // тайл писал в буфер глубины в прошлом кадре — его надо очистить
+
+        // время стадий кадра и HUD с ним
+        final FrameProfiler profiler = new FrameProfiler();
+        boolean showHud = false;
+
+        static final Stroke EDGE_STROKE = new BasicStroke(2f);
+        static final Color EDGE_COLOR = new Color(30,30,30);
+        static final Color AXIS_COLOR = new Color(0,120,255);
+
+        Renderer(){ resetCamera(); }
+
+        void resetCamera(){
+            camRadius = 6; camYaw = Math.toRadians(35); camPitch = Math.toRadians(20);
+            fovY = 60;
+        }
+
+        // пересчёт view/proj/VP только при изменении параметров камеры или размера кадра
+        void updateCamera(int W, int H){
+            if (camYaw==cachedYaw && camPitch==cachedPitch && camRadius==cachedRadius && fovY==cachedFovY
+                    && zNear==cachedNear && zFar==cachedFar && W==cachedW && H==cachedH) return;
+            double cx = camRadius * Math.cos(camPitch) * Math.cos(camYaw);
+            double cy = camRadius * Math.sin(camPitch);
+            double cz = camRadius * Math.cos(camPitch) * Math.sin(camYaw);
+            view.setLookAt(cx,cy,cz, 0,0,0, 0,1,0);
+            proj.setPerspective(fovY, (double)W/H, zNear, zFar);
+            VP.mulInto(proj, view);
+            cachedYaw=camYaw; cachedPitch=camPitch; cachedRadius=camRadius; cachedFovY=fovY;
+            cachedNear=zNear; cachedFar=zFar; cachedW=W; cachedH=H;
+        }
+
+        // одна модель: сцена из единственного узла (матрица копируется, без аллокаций)
+        private final Scene soloScene = new Scene();
+        private final SceneNode soloNode = soloScene.root.add(new SceneNode(null));
+
+        // кадр целиком; axisP1 == null — ось вращения не рисуется. Фон заливает вызывающий.
+        void render(Graphics2D g2, int W, int H, WireModel model, Mat4 modelMatrix, Vec3 axisP1, Vec3 axisP2){
+            soloNode.model = model;
+            soloNode.local.set(modelMatrix);
+            soloNode.invalidate();
+            render(g2, W, H, soloScene, axisP1, axisP2);
+        }
+        void render(Graphics2D g2, int W, int H, Scene scene, Vec3 axisP1, Vec3 axisP2){
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            FrameProfiler pf = profiler;
+            pf.beginFrame();
+
+            pf.begin(FrameProfiler.Stage.MATRICES);
+            updateCamera(W, H);
+            scene.update();
+            pf.end(FrameProfiler.Stage.MATRICES);
+
+            pf.begin(FrameProfiler.Stage.PROJECTION);
+            beginLines(W, H);
+            appendNode(scene.root, W, H);
+            endLines();
+            pf.end(FrameProfiler.Stage.PROJECTION);
+
+            if (backend == Backend.JAVA2D){
+                // оси
+                pf.begin(FrameProfiler.Stage.AXES);
+                drawWorldAxes(g2, W, H, VP);
+                pf.end(FrameProfiler.Stage.AXES);
+
+                // рёбра
+                pf.begin(FrameProfiler.Stage.EDGES);
+                g2.setStroke(EDGE_STROKE);
+                g2.setColor(EDGE_COLOR);
+                double[] L = lines;
+                for(int o=0, n4=4*lineCount; o<n4; o+=4){
+                    edgeLine.setLine(L[o], L[o+1], L[o+2], L[o+3]);
+                    g2.draw(edgeLine);
+                }
+                pf.end(FrameProfiler.Stage.EDGES);
+            } else {
+                // рёбра — в кадровый буфер, затем один blit; оси поверх
+                pf.begin(FrameProfiler.Stage.EDGES);
+                raster.ensureSize(W, H);
+                raster.clear(backgroundRgb);
+                if (hiddenPass) rasterizeHidden(W, H);
+                else if (lineCount >= parallelEdgeThreshold) rasterizeTiled(W, H);
+                else rasterizeLines(0, 0, W, H);
+                g2.drawImage(raster.image, 0, 0, null);
+                pf.end(FrameProfiler.Stage.EDGES);
+                pf.begin(FrameProfiler.Stage.AXES);
+                drawWorldAxes(g2, W, H, VP);
+                pf.end(FrameProfiler.Stage.AXES);
+            }
+
+            // ось вращения (учитывается в стадии «оси»)
+            if(axisP1!=null){
+                pf.begin(FrameProfiler.Stage.AXES);
+                Point2D.Double a1 = projectPoint(axisP1, VP, W, H);
+                Point2D.Double a2 = projectPoint(axisP2, VP, W, H);
+                g2.setStroke(new BasicStroke(1.6f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10, new float[]{6,6}, 0));
+                g2.setColor(AXIS_COLOR);
+                g2.draw(new Line2D.Double(a1, a2));
+                drawHandle(g2, a1, AXIS_COLOR);
+                drawHandle(g2, a2, AXIS_COLOR);
+                pf.end(FrameProfiler.Stage.AXES);
+            }
+            pf.endFrame();
+
+            if (hoverLine >= 0 && hoverVersion == linesVersion) drawHover(g2);
+            if (showHud) pf.drawHud(g2, W - 240, 10);
+        }
+
+        // ---- сборка отрезков кадра ----
+        // MVP = VP * modelMatrix; рёбра модели -> lines/lineCount (updateCamera уже вызван)
+        void buildLines(WireModel model, Mat4 modelMatrix, int W, int H){
+            beginLines(W, H);
+            appendLines(model, modelMatrix, W, H);
+        }
+        void beginLines(int W, int H){
+            lineCount = 0; statDrawn = 0; statCulled = 0; statClipped = 0;
+            statLodSkipped = 0; statSimplified = 0;
+            lodInv = 1.0/lodMinPx;
+            halfW = 0.5*W; halfH = 0.5*H;
+            frameW = W; frameH = H;
+            runCount = 0;
+            hiddenPass = hiddenLines && backend != Backend.JAVA2D;
+            triCount = 0;
+            frameSig = 31L*(31L*W + H) + (frustumCulling ? 1 : 0) + (lod ? 2 : 0) + 4*Double.doubleToLongBits(lodMinPx);
+            if (hiddenPass) frameSig = 31*frameSig + 1;
+        }
+        void endLines(){
+            if (frameSig != lastFrameSig){ lastFrameSig = frameSig; linesVersion++; }
+        }
+        // дописать рёбра модели с матрицей modelMatrix к уже собранным
+        void appendLines(WireModel model, Mat4 modelMatrix, int W, int H){
+            MVP.mulInto(VP, modelMatrix);
+            if (lod && !hiddenPass) model = selectLod(model, modelMatrix);
+            lastModel = model;
+            int need = 4*(lineCount + model.edgeCount);
+            if (lines.length < need) lines = Arrays.copyOf(lines, Math.max(need, lines.length + lines.length/2));
+            if (lineEdge.length < need/4) lineEdge = Arrays.copyOf(lineEdge, lines.length/4);
+            if (hiddenPass && lineDepth.length < need/2) lineDepth = Arrays.copyOf(lineDepth, lines.length/2);
+            long sig = frameSig*31 + System.identityHashCode(model)*31L + model.edgeCount;
+            for (double v : MVP.m) sig = sig*31 + Double.doubleToLongBits(v);
+            frameSig = sig;
+            if (frustumCulling || hiddenPass) buildLinesCulled(model);
+            else buildLinesAll(model, W, H);
+            if (hiddenPass) appendFaces(model);
+            statDrawn = lineCount;
+        }
+        private boolean sameCell(double x0, double y0, double x1, double y1){
+            double k = lodInv;
+            return Math.floor(x0*k) == Math.floor(x1*k) && Math.floor(y0*k) == Math.floor(y1*k);
+        }
+        // самый грубый уровень, чья клетка у ближней точки ограничивающей сферы не больше lodMinPx
+        private WireModel selectLod(WireModel model, Mat4 modelMatrix){
+            WireModel[] levels = model.lods();
+            if (levels.length == 1) return model;
+            double[] b = model.bounds, m = MVP.m, mm = modelMatrix.m;
+            double scale = 0;
+            for (int c=0; c<3; c++) scale = Math.max(scale, Math.sqrt(mm[4*c]*mm[4*c] + mm[4*c+1]*mm[4*c+1] + mm[4*c+2]*mm[4*c+2]));
+            // w центра сферы — его глубина перед камерой
+            double depth = m[3]*b[0] + m[7]*b[1] + m[11]*b[2] + m[15] - b[3]*scale;
+            if (depth <= zNear) return model;
+            double pxPerUnit = proj.m[5]*halfH*scale / depth;
+            for (int i=levels.length-1; i>0; i--){
+                if (model.lodCell[i]*pxPerUnit <= lodMinPx){
+                    statSimplified += model.edgeCount - levels[i].edgeCount;
+                    return levels[i];
+                }
+            }
+            return model;
+        }
+        // все узлы поддерева с моделью (мировые матрицы уже обновлены Scene.update)
+        void appendNode(SceneNode n, int W, int H){
+            if (n.model != null){
+                if (runCount == runNode.length){
+                    runNode = Arrays.copyOf(runNode, 2*runCount);
+                    runModel = Arrays.copyOf(runModel, 2*runCount);
+                    runStart = Arrays.copyOf(runStart, 2*runCount+1);
+                }
+                runNode[runCount] = n;
+                runStart[runCount] = lineCount;
+                appendLines(n.model, n.world, W, H);
+                runModel[runCount] = lastModel;
+                runStart[++runCount] = lineCount;
+            }
+            ArrayList<SceneNode> ch = n.children;
+            for (int i=0, c=ch.size(); i<c; i++) appendNode(ch.get(i), W, H);
+        }
+        // все вершины пакетом, без отсечения; рёбра с вершиной при w==0 пропускаются
+        private void buildLinesAll(WireModel model, int W, int H){
+            if (packedProjection){ buildLinesPacked(model, W, H); return; }
+            if (screen.length < 2*model.vertexCount) screen = new double[2*model.vertexCount];
+            projectVertices(model, W, H);
+            int[] ei = model.edgeIdx;
+            double[] L = lines;
+            int n = 4*lineCount;
+            for(int i=0, n2=2*model.edgeCount; i<n2; i+=2){
+                int a=2*ei[i], b=2*ei[i+1];
+                if (Double.isNaN(screen[a]) || Double.isNaN(screen[b])){ statCulled++; continue; }
+                if (lod && sameCell(screen[a], screen[a+1], screen[b], screen[b+1])){ statLodSkipped++; continue; }
+                L[n]=screen[a]; L[n+1]=screen[a+1]; L[n+2]=screen[b]; L[n+3]=screen[b+1];
+                lineEdge[n>>2] = i>>1;
+                n += 4;
+            }
+            lineCount = n/4;
+        }
+        private void buildLinesPacked(WireModel model, int W, int H){
+            int V = model.vertexCount;
+            if (screenX.length < V){ screenX = new float[V]; screenY = new float[V]; }
+            model.packCoords();
+            projectVertices(model, W, H);
+            int[] ei = model.edgeIdx;
+            float[] sx = screenX, sy = screenY;
+            double[] L = lines;
+            int n = 4*lineCount;
+            for(int i=0, n2=2*model.edgeCount; i<n2; i+=2){
+                int a=ei[i], b=ei[i+1];
+                float ax=sx[a], ay=sy[a], bx=sx[b], by=sy[b];
+                if (!Float.isFinite(ax+ay+bx+by)){ statCulled++; continue; }
+                if (lod && sameCell(ax, ay, bx, by)){ statLodSkipped++; continue; }
+                L[n]=ax; L[n+1]=ay; L[n+2]=bx; L[n+3]=by;
+                lineEdge[n>>2] = i>>1;
+                n += 4;
+            }
+            lineCount = n/4;
+        }
+        // вершины модели -> screenX/screenY (packedProjection) или screen; крупные модели — частями в пуле
+        void projectVertices(WireModel model, int W, int H){
+            int V = model.vertexCount;
+            if (V >= Math.max(parallelVertexThreshold, 2*projectionChunk) && pool.getParallelism() > 1)
+                pool.invoke(new ProjectTask(model, 0, V, W, H));
+            else projectRange(model, 0, V, W, H);
+        }
+        private void projectRange(WireModel model, int from, int to, int W, int H){
+            if (packedProjection) MVP.projectPacked(model.px, model.py, model.pz, from, to, W, H, screenX, screenY);
+            else MVP.projectBatch(model.xyz, from, to, W, H, screen);
+        }
+        final class ProjectTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            final WireModel model;
+            final int lo, hi, W, H;
+            ProjectTask(WireModel model, int lo, int hi, int W, int H){ this.model=model; this.lo=lo; this.hi=hi; this.W=W; this.H=H; }
+            @Override protected void compute(){
+                if (hi-lo <= projectionChunk){
+                    projectRange(model, lo, hi, W, H);
+                    return;
+                }
+                // граница частей кратна projectionChunk — разбиение не зависит от числа потоков
+                int mid = lo + (((hi-lo)/projectionChunk + 1)/2)*projectionChunk;
+                invokeAll(new ProjectTask(model, lo, mid, W, H), new ProjectTask(model, mid, hi, W, H));
+            }
+        }
+
+        // обход BVH: невидимые поддеревья отбрасываются без преобразования вершин,
+        // целиком видимые выводятся без проверок, пограничные рёбра обрезаются в однородных координатах
+        private void buildLinesCulled(WireModel model){
+            int V = model.vertexCount;
+            if (clipStamp.length < V){ clip = new double[4*V]; clipStamp = new int[V]; frameStamp = 0; }
+            if (++frameStamp == Integer.MAX_VALUE){ Arrays.fill(clipStamp, 0); frameStamp = 1; }
+            if (model.edgeCount == 0) return;
+            EdgeBVH bvh = model.bvh();
+            setFrustumPlanes(MVP.m, frustum);
+
+            int sp = 0;
+            bvhStack[sp++] = 0;
+            while (sp > 0){
+                int node = bvhStack[--sp];
+                int c = bvh.classify(node, frustum);
+                if (c == EdgeBVH.OUTSIDE){ statCulled += bvh.count[node]; continue; }
+                if (c == EdgeBVH.INSIDE || bvh.isLeaf(node)){
+                    for (int k=bvh.start[node], end=k+bvh.count[node]; k<end; k++) emitEdge(model, bvh.order[k], c == EdgeBVH.INSIDE);
+                    continue;
+                }
+                if (sp+2 > bvhStack.length) bvhStack = Arrays.copyOf(bvhStack, 2*bvhStack.length);
+                bvhStack[sp++] = bvh.left[node]+1;
+                bvhStack[sp++] = bvh.left[node];
+            }
+        }
+        // плоскости пирамиды видимости в координатах модели: строка3 ± строка0..2 матрицы MVP
+        static void setFrustumPlanes(double[] m, double[] out){
+            for (int r=0, p=0; r<3; r++){
+                for (int sign=1; sign>=-1; sign-=2, p+=4){
+                    out[p]   = m[3]  + sign*m[r];
+                    out[p+1] = m[7]  + sign*m[4+r];
+                    out[p+2] = m[11] + sign*m[8+r];
+                    out[p+3] = m[15] + sign*m[12+r];
+                }
+            }
+        }
+        private int clipVertex(WireModel model, int v){
+            int o = 4*v;
+            if (clipStamp[v] != frameStamp){
+                double[] m = MVP.m, P = model.xyz;
+                int j = 3*v;
+                double x=P[j], y=P[j+1], z=P[j+2];
+                clip[o]   = m[0]*x + m[4]*y + m[8]*z  + m[12];
+                clip[o+1] = m[1]*x + m[5]*y + m[9]*z  + m[13];
+                clip[o+2] = m[2]*x + m[6]*y + m[10]*z + m[14];
+                clip[o+3] = m[3]*x + m[7]*y + m[11]*z + m[15];
+                clipStamp[v] = frameStamp;
+            }
+            return o;
+        }
+        private void emitEdge(WireModel model, int e, boolean inside){
+            int ia = clipVertex(model, model.edgeIdx[2*e]), ib = clipVertex(model, model.edgeIdx[2*e+1]);
+            double[] C = clip;
+            double ax=C[ia], ay=C[ia+1], az=C[ia+2], aw=C[ia+3];
+            double bx=C[ib], by=C[ib+1], bz=C[ib+2], bw=C[ib+3];
+            if (!inside){
+                // обе вершины за одной боковой плоскостью — ребро не видно
+                if ((ax>aw && bx>bw) || (ax<-aw && bx<-bw) || (ay>aw && by>bw) || (ay<-aw && by<-bw)){ statCulled++; return; }
+                boolean clipped = false;
+                // ближняя плоскость: z + w >= 0
+                double da = az+aw, db = bz+bw;
+                if (da<0 && db<0){ statCulled++; return; }
+                if (da<0 || db<0){
+                    double t = da/(da-db);
+                    double x=ax+t*(bx-ax), y=ay+t*(by-ay), z=az+t*(bz-az), w=aw+t*(bw-aw);
+                    if (da<0){ ax=x; ay=y; az=z; aw=w; } else { bx=x; by=y; bz=z; bw=w; }
+                    clipped = true;
+                }
+                // дальняя плоскость: w - z >= 0
+                da = aw-az; db = bw-bz;
+                if (da<0 && db<0){ statCulled++; return; }
+                if (da<0 || db<0){
+                    double t = da/(da-db);
+                    double x=ax+t*(bx-ax), y=ay+t*(by-ay), z=az+t*(bz-az), w=aw+t*(bw-aw);
+                    if (da<0){ ax=x; ay=y; aw=w; } else { bx=x; by=y; bw=w; }
+                    clipped = true;
+                }
+                if (clipped) statClipped++;
+            }
+            double x0 = (ax/aw + 1.0)*halfW, y0 = (1.0 - ay/aw)*halfH;
+            double x1 = (bx/bw + 1.0)*halfW, y1 = (1.0 - by/bw)*halfH;
+            if (lod && sameCell(x0, y0, x1, y1)){ statLodSkipped++; return; }
+            if (hiddenPass){ lineDepth[2*lineCount] = (float)(1/aw); lineDepth[2*lineCount+1] = (float)(1/bw); }
+            lineEdge[lineCount] = e;
+            int o = 4*lineCount++;
+            double[] L = lines;
+            L[o] = x0; L[o+1] = y0; L[o+2] = x1; L[o+3] = y1;
+        }
+
+        // грани модели -> tris (clip уже подготовлен buildLinesCulled). Треугольник целиком за одной из плоскостей
+        // пирамиды пропускается; задевший ближнюю плоскость обрезается ею, как рёбра, и даёт один-два треугольника.
+        // Боковые и дальняя плоскости грани не режут: растеризация и так ограничена кадром и глубиной
+        private void appendFaces(WireModel model){
+            int[] f = model.faces();
+            int need = 9*triCount + 6*f.length;
+            if (tris.length < need) tris = Arrays.copyOf(tris, Math.max(need, tris.length + tris.length/2));
+            double[] C = clip, T = tris;
+            int n = 9*triCount;
+            for (int i=0; i<f.length; i+=3){
+                int ia = clipVertex(model, f[i]), ib = clipVertex(model, f[i+1]), ic = clipVertex(model, f[i+2]);
+                double ax=C[ia], ay=C[ia+1], az=C[ia+2], aw=C[ia+3];
+                double bx=C[ib], by=C[ib+1], bz=C[ib+2], bw=C[ib+3];
+                double cx=C[ic], cy=C[ic+1], cz=C[ic+2], cw=C[ic+3];
+                if ((ax>aw && bx>bw && cx>cw) || (ax<-aw && bx<-bw && cx<-cw) || (ay>aw && by>bw && cy>cw)
+                        || (ay<-aw && by<-bw && cy<-cw) || (az>aw && bz>bw && cz>cw)) continue;
+                // ближняя плоскость: z + w >= 0
+                double da = az+aw, db = bz+bw, dc = cz+cw;
+                if (da<0 && db<0 && dc<0) continue;
+                if (da>=0 && db>=0 && dc>=0){
+                    n = faceVertex(T, n, ax, ay, aw);
+                    n = faceVertex(T, n, bx, by, bw);
+                    n = faceVertex(T, n, cx, cy, cw);
+                    continue;
+                }
+                // обрезка одной плоскостью (Сазерленд — Ходжмен): 3 или 4 вершины, веер из первой
+                double[] P = facePoly;
+                int k = 0;
+                for (int e=0; e<3; e++){
+                    int i0 = e==0 ? ia : e==1 ? ib : ic, i1 = e==0 ? ib : e==1 ? ic : ia;
+                    double d0 = C[i0+2]+C[i0+3], d1 = C[i1+2]+C[i1+3];
+                    if (d0 >= 0){ P[k]=C[i0]; P[k+1]=C[i0+1]; P[k+2]=C[i0+3]; k+=3; }
+                    if ((d0<0) != (d1<0)){
+                        double t = d0/(d0-d1);
+                        P[k]   = C[i0]   + t*(C[i1]-C[i0]);
+                        P[k+1] = C[i0+1] + t*(C[i1+1]-C[i0+1]);
+                        P[k+2] = C[i0+3] + t*(C[i1+3]-C[i0+3]);
+                        k += 3;
+                    }
+                }
+                for (int j=3; j+3<k; j+=3){
+                    n = faceVertex(T, n, P[0], P[1], P[2]);
+                    n = faceVertex(T, n, P[j], P[j+1], P[j+2]);
+                    n = faceVertex(T, n, P[j+3], P[j+4], P[j+5]);
+                }
+            }
+            triCount = n/9;
+        }
+        private int faceVertex(double[] T, int n, double x, double y, double w){
+            T[n] = (x/w + 1.0)*halfW; T[n+1] = (1.0 - y/w)*halfH; T[n+2] = 1/w;
+            return n+3;
+        }
+
+        // отрезки lines в raster, только пиксели внутри [cx0,cx1) x [cy0,cy1)
+        void rasterizeLines(int cx0, int cy0, int cx1, int cy1){
+            int rgb = EDGE_COLOR.getRGB() & 0xFFFFFF;
+            boolean aa = backend == Backend.RASTER_AA;
+            double[] L = lines;
+            for(int o=0, n4=4*lineCount; o<n4; o+=4){
+                if (aa) raster.drawLineAA(L[o], L[o+1], L[o+2], L[o+3], rgb, cx0, cy0, cx1, cy1);
+                else    raster.drawLine(L[o], L[o+1], L[o+2], L[o+3], rgb, cx0, cy0, cx1, cy1);
+            }
+        }
+
+        // число потоков растеризации и проекции; 0 — общий пул ForkJoin
+        void setParallelism(int threads){
+            if (pool != ForkJoinPool.commonPool()) pool.shutdown();
+            pool = threads <= 0 ? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+        }
+
+        // отрезки раскладываются по тайлам TILE x TILE (counting sort, порядок внутри тайла сохраняется),
+        // затем тайлы рисуются параллельно — каждый пишет только в свои пиксели
+        void rasterizeTiled(int W, int H){
+            int nt = binSegments(W, H);
+            pool.invoke(new TileTask(0, nt, W, H));
+        }
+        // невидимые линии: те же тайлы, плюс треугольники граней, разложенные так же. Тайл очищает свою часть
+        // буфера глубины (только если писал в неё в прошлом кадре), заносит грани и рисует рёбра с проверкой
+        void rasterizeHidden(int W, int H){
+            int nt = binSegments(W, H);
+            if (raster.ensureDepth() || tileDepthUsed.length != nt) tileDepthUsed = new boolean[nt];
+            int T = triCount;
+            if (triBox.length < 4*T) triBox = new int[4*T];
+            if (triCursor.length < nt){ triStart = new int[nt+1]; triCursor = new int[nt]; }
+            Arrays.fill(triStart, 0, nt+1, 0);
+            double[] D = tris;
+            for (int i=0; i<T; i++){
+                int o = 9*i, b = 4*i;
+                int tx0 = tileOf(Math.min(D[o], Math.min(D[o+3], D[o+6]))-1, tilesX), tx1 = tileOf(Math.max(D[o], Math.max(D[o+3], D[o+6]))+1, tilesX);
+                int ty0 = tileOf(Math.min(D[o+1], Math.min(D[o+4], D[o+7]))-1, tilesY), ty1 = tileOf(Math.max(D[o+1], Math.max(D[o+4], D[o+7]))+1, tilesY);
+                triBox[b]=tx0; triBox[b+1]=ty0; triBox[b+2]=tx1; triBox[b+3]=ty1;
+                for (int ty=ty0; ty<=ty1; ty++) for (int tx=tx0; tx<=tx1; tx++) triStart[ty*tilesX+tx+1]++;
+            }
+            for (int t=0; t<nt; t++) triStart[t+1] += triStart[t];
+            int need = triStart[nt];
+            if (tileTris.length < need) tileTris = new int[Math.max(need, tileTris.length + tileTris.length/2)];
+            System.arraycopy(triStart, 0, triCursor, 0, nt);
+            for (int i=0; i<T; i++){
+                int b = 4*i;
+                for (int ty=triBox[b+1]; ty<=triBox[b+3]; ty++)
+                    for (int tx=triBox[b]; tx<=triBox[b+2]; tx++) tileTris[triCursor[ty*tilesX+tx]++] = i;
+            }
+            pool.invoke(new TileTask(0, nt, W, H));
+        }
+        // отсечение отрезков по кадру и раскладка по тайлам; возвращает число тайлов
+        private int binSegments(int W, int H){
+            int E = lineCount;
+            tilesX = (W+TILE-1)/TILE; tilesY = (H+TILE-1)/TILE;
+            int nt = tilesX*tilesY;
+            if (segs.length < 4*E){ segs = new double[4*E]; segBox = new int[4*E]; }
+            if (hiddenPass && segDepth.length < 2*E) segDepth = new double[2*E];
+            if (tileCursor.length < nt){ tileStart = new int[nt+1]; tileCursor = new int[nt]; }
+            Arrays.fill(tileStart, 0, nt+1, 0);
+
+            // 1: отсечение и подсчёт отрезков в тайлах
+            double[] L = lines;
+            for (int e=0; e<E; e++){
+                int o=4*e;
+                if (!raster.clipToFrame(L[o], L[o+1], L[o+2], L[o+3], segs, o)){ segBox[o] = -1; continue; }
+                if (hiddenPass){
+                    // 1/w линейна по экрану — у обрезанных концов она берётся в тех же долях отрезка
+                    double z0 = lineDepth[2*e], z1 = lineDepth[2*e+1];
+                    segDepth[2*e] = z0 + raster.t0*(z1-z0); segDepth[2*e+1] = z0 + raster.t1*(z1-z0);
+                }
+                // с запасом в пиксель: линия Ву задевает соседний по побочной оси пиксель
+                int tx0 = tileOf(Math.min(segs[o], segs[o+2])-1, tilesX), tx1 = tileOf(Math.max(segs[o], segs[o+2])+1, tilesX);
+                int ty0 = tileOf(Math.min(segs[o+1], segs[o+3])-1, tilesY), ty1 = tileOf(Math.max(segs[o+1], segs[o+3])+1, tilesY);
+                segBox[o]=tx0; segBox[o+1]=ty0; segBox[o+2]=tx1; segBox[o+3]=ty1;
+                for (int ty=ty0; ty<=ty1; ty++) for (int tx=tx0; tx<=tx1; tx++) tileStart[ty*tilesX+tx+1]++;
+            }
+            for (int t=0; t<nt; t++) tileStart[t+1] += tileStart[t];
+            int need = tileStart[nt];
+            if (tileEdges.length < need) tileEdges = new int[Math.max(need, tileEdges.length + tileEdges.length/2)];
+
+            // 2: раскладка
+            System.arraycopy(tileStart, 0, tileCursor, 0, nt);
+            for (int e=0; e<E; e++){
+                int o=4*e;
+                if (segBox[o] < 0) continue;
+                for (int ty=segBox[o+1]; ty<=segBox[o+3]; ty++)
+                    for (int tx=segBox[o]; tx<=segBox[o+2]; tx++) tileEdges[tileCursor[ty*tilesX+tx]++] = e;
+            }
+            return nt;
+        }
+        private static int tileOf(double v, int tiles){
+            return Math.max(0, Math.min(tiles-1, (int)Math.floor(v+0.5) / TILE));
+        }
+        private void rasterizeTile(int t, int W, int H){
+            int cx0 = (t%tilesX)*TILE, cy0 = (t/tilesX)*TILE;
+            int cx1 = Math.min(W, cx0+TILE), cy1 = Math.min(H, cy0+TILE);
+            int rgb = EDGE_COLOR.getRGB() & 0xFFFFFF;
+            boolean aa = backend == Backend.RASTER_AA;
+            double[] sg = segs;
+            if (hiddenPass){
+                if (tileDepthUsed[t]) raster.clearDepth(cx0, cy0, cx1, cy1);
+                tileDepthUsed[t] = triStart[t+1] > triStart[t];
+                for (int k=triStart[t], end=triStart[t+1]; k<end; k++) raster.fillDepth(tris, 9*tileTris[k], cx0, cy0, cx1, cy1);
+                double[] sz = segDepth;
+                for (int k=tileStart[t], end=tileStart[t+1]; k<end; k++){
+                    int e = tileEdges[k], o = 4*e;
+                    if (aa) raster.drawClippedLineAADepth(sg[o], sg[o+1], sz[2*e], sg[o+2], sg[o+3], sz[2*e+1], rgb, cx0, cy0, cx1, cy1);
+                    else    raster.drawClippedLineDepth(sg[o], sg[o+1], sz[2*e], sg[o+2], sg[o+3], sz[2*e+1], rgb, cx0, cy0, cx1, cy1);
+                }
+                return;
+            }
+            for (int k=tileStart[t], end=tileStart[t+1]; k<end; k++){
+                int o = 4*tileEdges[k];
+                if (aa) raster.drawClippedLineAA(sg[o], sg[o+1], sg[o+2], sg[o+3], rgb, cx0, cy0, cx1, cy1);
+                else    raster.drawClippedLine(sg[o], sg[o+1], sg[o+2], sg[o+3], rgb, cx0, cy0, cx1, cy1);
+            }
         }
-        static Mat4 rotationX(double a){
-            double c=Math.cos(a), s=Math.sin(a);
-            Mat4 r=identity();
-            r.m[5]=c;
-            r.m[6]=s;
-            r.m[9]=-s;
-            r.m[10]=c;
-            return r;
-        }
-        static Mat4 rotationY(double a){
-            double c=Math.cos(a), s=Math.sin(a);
-            Mat4 r=identity();
-            r.m[0]=c;
-            r.m[2]=-s;
-            r.m[8]=s;
-            r.m[10]=c;
-            return r;
-        }
-        static Mat4 rotationZ(double a){
-            double c=Math.cos(a), s=Math.sin(a);
-            Mat4 r=identity();
-            r.m[0]=c;
-            r.m[1]=s;
-            r.m[4]=-s;
-            r.m[5]=c;
-            return r;
+        final class TileTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            final int lo, hi, W, H;
+            TileTask(int lo, int hi, int W, int H){ this.lo=lo; this.hi=hi; this.W=W; this.H=H; }
+            @Override protected void compute(){
+                if (hi-lo <= 4){
+                    for (int t=lo; t<hi; t++) rasterizeTile(t, W, H);
+                    return;
+                }
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new TileTask(lo, mid, W, H), new TileTask(mid, hi, W, H));
+            }
         }
-        static Mat4 rotationAroundAxis(Vec3 axisUnit, double angle){
-            double x=axisUnit.x, y=axisUnit.y, z=axisUnit.z;
-            double c=Math.cos(angle), s=Math.sin(angle), t=1-c;
-            Mat4 r=new Mat4();
-            r.m[0] = t*x*x + c;     r.m[4] = t*x*y - s*z;  r.m[8]  = t*x*z + s*y;  r.m[12]=0;
-            r.m[1] = t*x*y + s*z;   r.m[5] = t*y*y + c;    r.m[9]  = t*y*z - s*x;  r.m[13]=0;
-            r.m[2] = t*x*z - s*y;   r.m[6] = t*y*z + s*x;  r.m[10] = t*z*z + c;    r.m[14]=0;
-            r.m[3]=r.m[7]=r.m[11]=0; r.m[15]=1;
-            return r;
+
+        // ---- выбор под курсором ----
+        // сетка перестраивается лениво и только если отрезки изменились с прошлой постройки
+        boolean pickAt(double x, double y, double r){
+            if (pickGrid.builtVersion != linesVersion){
+                pickGrid.build(lines, lineCount, frameW, frameH);
+                pickGrid.builtVersion = linesVersion;
+            }
+            if (!pickGrid.pick(lines, x, y, r)) return false;
+            // конец обрезанного ближней плоскостью ребра — не вершина модели
+            if (pickGrid.hitEnd >= 0){
+                Vec3 v = pickedVertex(pickGrid.hitLine, pickGrid.hitEnd);
+                int o = 4*pickGrid.hitLine + 2*pickGrid.hitEnd;
+                if (v == null) pickGrid.hitEnd = -1;
+                else {
+                    Point2D.Double p = projectPoint(v, VP, frameW, frameH);
+                    if (PickGrid.dist2(p.x, p.y, lines[o], lines[o+1]) > 1) pickGrid.hitEnd = -1;
+                }
+            }
+            return true;
         }
-        static Mat4 perspective(double fovYdeg, double aspect, double zNear, double zFar){
-            double f = 1.0/Math.tan(Math.toRadians(fovYdeg)/2.0);
-            Mat4 r=new Mat4(); Arrays.fill(r.m,0);
-            r.m[0]=f/aspect; r.m[5]=f; r.m[10]=(zFar+zNear)/(zNear-zFar); r.m[11]=-1; r.m[14]=(2*zFar*zNear)/(zNear-zFar);
-            return r;
+        // наведение: true, если подсвеченный элемент сменился
+        boolean hoverAt(double x, double y, double r){
+            int line = -1, end = -1;
+            if (pickAt(x, y, r)){ line = pickGrid.hitLine; end = pickGrid.hitEnd; }
+            boolean changed = line != hoverLine || end != hoverEnd || hoverVersion != linesVersion;
+            hoverLine = line; hoverEnd = end; hoverVersion = linesVersion;
+            return changed;
         }
-        static Mat4 lookAt(Vec3 eye, Vec3 center, Vec3 up){
-            Vec3 f = center.sub(eye).normalized();
-            Vec3 s = f.cross(up).normalized();
-            Vec3 u = s.cross(f);
-            Mat4 r = new Mat4();
-            r.m[0]=s.x; r.m[4]=s.y; r.m[8] =s.z; r.m[12]= -s.dot(eye);
-            r.m[1]=u.x; r.m[5]=u.y; r.m[9] =u.z; r.m[13]= -u.dot(eye);
-            r.m[2]=-f.x; r.m[6]=-f.y; r.m[10]=-f.z; r.m[14]=  f.dot(eye);
-            r.m[3]=0; r.m[7]=0; r.m[11]=0; r.m[15]=1;
-            return r;
-        }
-        Mat4 mul(Mat4 o){
-            Mat4 r = new Mat4(); Arrays.fill(r.m,0);
-            for (int c = 0; c < 4 ;c++)
-                for (int r0 = 0; r0 < 4; r0++)
-                    for(int k = 0; k < 4; k++)
-                        r.m[c*4+r0]+= this.m[k*4+r0]*o.m[c*4+k];
-            return r;
+        // мировые координаты конца end отрезка line (null, если узел отрезка неизвестен)
+        Vec3 pickedVertex(int line, int end){
+            if (line < 0 || line >= lineCount || runCount == 0) return null;
+            // последний участок, начинающийся не позже line (пустые участки перед ним пропускаются)
+            int lo = 0, hi = runCount-1;
+            while (lo < hi){
+                int mid = (lo+hi+1) >>> 1;
+                if (runStart[mid] <= line) lo = mid; else hi = mid-1;
+            }
+            SceneNode node = runNode[lo];
+            WireModel model = runModel[lo];
+            int v = model.edgeIdx[2*lineEdge[line] + end];
+            // у уровня LOD вершина — средняя точка кластера; выбирается ближайшая к ней вершина самой модели
+            if (model.lodSource != null){ v = model.lodSource[v]; model = node.model; }
+            double[] P = model.xyz;
+            double[] w = node.world.mulVec4(P[3*v], P[3*v+1], P[3*v+2], 1);
+            return new Vec3(w[0], w[1], w[2]);
         }
-        double[] mulVec4(double x,double y,double z,double w){
-            return new double[]{
-                    m[0]*x + m[4]*y + m[8]*z  + m[12]*w,
-                    m[1]*x + m[5]*y + m[9]*z  + m[13]*w,
-                    m[2]*x + m[6]*y + m[10]*z + m[14]*w,
-                    m[3]*x + m[7]*y + m[11]*z + m[15]*w
-            };
+        private void drawHover(Graphics2D g2){
+            int o = 4*hoverLine;
+            Stroke old = g2.getStroke();
+            g2.setColor(HOVER_COLOR);
+            g2.setStroke(HOVER_STROKE);
+            edgeLine.setLine(lines[o], lines[o+1], lines[o+2], lines[o+3]);
+            g2.draw(edgeLine);
+            g2.setStroke(old);
+            if (hoverEnd >= 0) drawHandle(g2, new Point2D.Double(lines[o+2*hoverEnd], lines[o+2*hoverEnd+1]), HOVER_COLOR);
         }
-    }
 
-    static class WireModel {
-        java.util.List<Vec3> vertices = new ArrayList<>();
-        java.util.List<int[]> edges = new ArrayList<>();
-        static WireModel letterB(double s) {
-            WireModel m = new WireModel();
-            double w = s, h = s*1.5, thirdW = w/3, fifthH = h/5;
-            // Задняя буква
-            m.vertices.add(new Vec3(0, 0, 0)); //0
-            m.vertices.add(new Vec3(0, h, 0)); //1
-            m.vertices.add(new Vec3(w, h, 0)); //2
-            m.vertices.add(new Vec3(w, 4*fifthH, 0)); //3
-            m.vertices.add(new Vec3(thirdW, 4*fifthH, 0)); //4
-            m.vertices.add(new Vec3(thirdW, 3*fifthH, 0)); //5
-            m.vertices.add(new Vec3(w, 3*fifthH, 0)); //6
-            m.vertices.add(new Vec3(w, 0, 0)); //7
-            // Заднее отверстие
-            m.vertices.add(new Vec3(thirdW, 2*fifthH, 0)); //8
-            m.vertices.add(new Vec3(2*thirdW, 2*fifthH, 0)); //9
-            m.vertices.add(new Vec3(2*thirdW, fifthH, 0)); //10
-            m.vertices.add(new Vec3(thirdW, fifthH, 0)); //11
-            // Передняя буква (z=1)
-            m.vertices.add(new Vec3(0, 0, 1)); //12
-            m.vertices.add(new Vec3(0, h, 1)); //13
-            m.vertices.add(new Vec3(w, h, 1)); //14
-            m.vertices.add(new Vec3(w, 4*fifthH, 1)); //15
-            m.vertices.add(new Vec3(thirdW, 4*fifthH, 1)); //16
-            m.vertices.add(new Vec3(thirdW, 3*fifthH, 1)); //17
-            m.vertices.add(new Vec3(w, 3*fifthH, 1)); //18
-            m.vertices.add(new Vec3(w, 0, 1)); //19
-            // Переднее отверстие
-            m.vertices.add(new Vec3(thirdW, 2*fifthH, 1)); //20
-            m.vertices.add(new Vec3(2*thirdW, 2*fifthH, 1)); //21
-            m.vertices.add(new Vec3(2*thirdW, fifthH, 1)); //22
-            m.vertices.add(new Vec3(thirdW, fifthH, 1)); //23
-            // Рёбра: контуры
-            for (int i=0;i<7;i++) m.edges.add(new int[]{i,i+1}); m.edges.add(new int[]{7,0});
-            for (int i=8;i<11;i++) m.edges.add(new int[]{i,i+1}); m.edges.add(new int[]{11,8});
-            for (int i=12;i<19;i++) m.edges.add(new int[]{i,i+1}); m.edges.add(new int[]{19,12});
-            for (int i=20;i<23;i++) m.edges.add(new int[]{i,i+1}); m.edges.add(new int[]{23,20});
-            // Соединение передней/задней
-            for (int i=0;i<m.vertices.size()/2;i++) m.edges.add(new int[]{i,i+12});
-            return m;
+        private static void drawHandle(Graphics2D g2, Point2D.Double p, Color c){
+            g2.setColor(Color.white); g2.fill(new Ellipse2D.Double(p.x-4,p.y-4,8,8));
+            g2.setColor(c); g2.setStroke(new BasicStroke(1.5f)); g2.draw(new Ellipse2D.Double(p.x-4,p.y-4,8,8));
         }
-        Vec3 centroid(){
-            double sx=0,sy=0,sz=0; for(Vec3 v:vertices){ sx+=v.x; sy+=v.y; sz+=v.z; }
-            int n=vertices.size(); return new Vec3(sx/n,sy/n,sz/n);
+        private static void drawWorldAxes(Graphics2D g2, int W, int H, Mat4 VP){
+            Vec3 O=new Vec3(0,0,0), X=new Vec3(2,0,0), Y=new Vec3(0,2,0), Z=new Vec3(0,0,2);
+            Point2D.Double o=projectPoint(O, VP, W, H);
+            Point2D.Double x=projectPoint(X, VP, W, H);
+            Point2D.Double y=projectPoint(Y, VP, W, H);
+            Point2D.Double z=projectPoint(Z, VP, W, H);
+            Stroke old=g2.getStroke(); g2.setStroke(new BasicStroke(1.8f));
+            g2.setColor(new Color(220,50,47)); g2.draw(new Line2D.Double(o,x)); g2.drawString("X",(int)x.x+4,(int)x.y);
+            g2.setColor(new Color(133,153,0)); g2.draw(new Line2D.Double(o,y)); g2.drawString("Y",(int)y.x+4,(int)y.y);
+            g2.setColor(new Color(38,139,210)); g2.draw(new Line2D.Double(o,z)); g2.drawString("Z",(int)z.x+4,(int)z.y);
+            g2.setStroke(old);
+        }
+        private static Point2D.Double projectPoint(Vec3 v, Mat4 M, int W, int H){
+            double[] r = M.mulVec4(v.x, v.y, v.z, 1.0);
+            if(r[3]==0) r[3]=1e-9;
+            r[0]/=r[3]; r[1]/=r[3];
+            double sx=(r[0]*0.5+0.5)*W, sy=(1.0-(r[1]*0.5+0.5))*H;
+            return new Point2D.Double(sx,sy);
         }
     }
 
     // ---------- Рендер-панель ----------
     static class Canvas3D extends JPanel implements MouseListener, MouseMotionListener, MouseWheelListener {
+        static final double DEFAULT_SPIN_DEG_PER_SEC = 45.0;
+
         WireModel model = WireModel.letterB(1.5);
-        Mat4 modelMatrix = Mat4.identity();
+        final Mat4 modelMatrix = Mat4.identity();
+        final Renderer renderer = new Renderer();
 
-        // камера-орбита
-        double camRadius = 6.0, camYaw = Math.toRadians(35), camPitch = Math.toRadians(20);
+        // граф сцены: modelMatrix — локальная матрица узла modelNode, под ним либо сама модель,
+        // либо instanceCount её копий (у каждой своё вращение)
+        final Scene scene = new Scene();
+        final SceneNode modelNode = scene.root.add(new SceneNode(null, modelMatrix));
+        int instanceCount = 0;
         final double camPitchMin = Math.toRadians(-89), camPitchMax = Math.toRadians(89);
-        double fovY = 60, zNear = 0.1, zFar = 100;
 
         // ось вращения
         Vec3 axisP1 = new Vec3(0,0,0), axisP2 = new Vec3(1,1,0);
@@ -170,135 +2217,354 @@ public class Affine extends JFrame {
 
         // анимация
         boolean spinning = false;
-        double spinDegPerSec = 45.0;
+        double spinDegPerSec = DEFAULT_SPIN_DEG_PER_SEC;
         long lastTickNs = System.nanoTime();
 
         // мышь
         Point lastMouse = null;
+        static final double PICK_RADIUS = 6;
+        Vec3 pickedP1 = null;   // первая вершина оси, выбранная щелчком
+
+        // поза модели (modelMatrix = pose.toMatrix) и вращение вокруг оси от базовой позы
+        final Pose pose = new Pose();
+        final Spin spin = new Spin();
+        final Quat tmpQ = new Quat();
 
-        // таймер
+        // таймер анимации: работает только пока модель вращается (в пассивном режиме)
         final javax.swing.Timer timer;
 
+        // планировщик перерисовки: изменения помечают вид «грязным», несколько пометок до отрисовки — один кадр
+        boolean repaintPending = false;
+        long framesRendered = 0, requestsCoalesced = 0;
+        final long statsStartNs = System.nanoTime();
+        static final long FRAME_SLOT_NS = 16_666_667L;
+        static final Color STATS_COLOR = new Color(120,120,120);
+
+        // активный рендеринг: отдельный поток рисует в java.awt.Canvas через BufferStrategy.
+        // Пока он работает, состоянием сцены владеет только этот поток, а EDT передаёт изменения
+        // через неблокирующую очередь pending.
+        final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        // изменения только состояния вида (подсветка, выбор): сцену не трогают, перерисовка — если вернули true
+        final ConcurrentLinkedQueue<BooleanSupplier> pendingView = new ConcurrentLinkedQueue<>();
+        volatile ActiveLoop activeLoop = null;
+        // переключатели глазами EDT: клавиши читают эти копии, а не поля renderer, которыми
+        // в активном режиме владеет поток отрисовки; renderer меняется только через apply
+        private Renderer.Backend backendSetting = renderer.backend;
+        private boolean lodSetting = renderer.lod, hiddenLinesSetting = renderer.hiddenLines, hudSetting = renderer.showHud;
+        static final double SPIN_STEP_SEC = 1.0/60;
+
         Canvas3D(){
             setBackground(Color.white);
+            setLayout(new BorderLayout());
             addMouseListener(this);
             addMouseMotionListener(this);
             addMouseWheelListener(this);
             setFocusable(true);
             setFocusTraversalKeysEnabled(true);
             bindKeys();
+            rebuildInstances();
             timer = new javax.swing.Timer(16, e -> {
                 long now = System.nanoTime();
                 double dt = (now - lastTickNs) * 1e-9;
                 lastTickNs = now;
                 if (spinning && axisDefined) {
-                    double da = Math.toRadians(spinDegPerSec * dt);
-                    rotateAroundLine(axisP1, axisP2, da);
+                    renderer.profiler.begin(FrameProfiler.Stage.ANIMATION);
+                    spinStep(dt);
+                    renderer.profiler.end(FrameProfiler.Stage.ANIMATION);
+                    modelNode.invalidate();
+                    markDirty();
+                }
+                if (instanceCount > 0){
+                    renderer.profiler.begin(FrameProfiler.Stage.ANIMATION);
+                    scene.animate(dt);
+                    renderer.profiler.end(FrameProfiler.Stage.ANIMATION);
+                    markDirty();
                 }
-                repaint();
             });
-            timer.start();
         }
 
+        // изменение состояния сцены: сразу (и перерисовка), либо в очередь потока активного рендеринга
+        void apply(Runnable change){
+            ActiveLoop loop = activeLoop;
+            if (loop == null){ change.run(); modelNode.invalidate(); markDirty(); return; }
+            pending.add(change);
+            LockSupport.unpark(loop.thread);
+        }
+        // то же для изменений вида: без invalidate() сцены и без кадра, если ничего не изменилось
+        void applyView(BooleanSupplier change){
+            ActiveLoop loop = activeLoop;
+            if (loop == null){ if (change.getAsBoolean()) markDirty(); return; }
+            pendingView.add(change);
+            LockSupport.unpark(loop.thread);
+        }
+        void markDirty(){
+            if (activeLoop != null) return;
+            if (repaintPending){ requestsCoalesced++; return; }
+            repaintPending = true;
+            repaint();
+        }
+        // таймер запускается при старте вращения и останавливается, когда анимировать нечего
+        private void updateAnimationTimer(){
+            if (activeLoop == null && animating()){
+                if (!timer.isRunning()){ lastTickNs = System.nanoTime(); timer.start(); }
+            } else timer.stop();
+        }
+
+        private boolean animating(){ return (spinning && axisDefined) || instanceCount > 0; }
+
         void setAxis(Vec3 p1, Vec3 p2){
             if (p1.sub(p2).len()==0) throw new IllegalArgumentException("Точки совпадают: ось нулевая.");
-            axisP1 = p1; axisP2 = p2; axisDefined = true; repaint();
+            apply(() -> { axisP1 = p1; axisP2 = p2; axisDefined = true; spin.setAxis(p1, p2); spin.rebase(pose); updateAnimationTimer(); });
+            firePropertyChange("axis", null, new Vec3[]{p1, p2});
+        }
+        void clearAxis(){ apply(() -> { axisDefined=false; spinning=false; updateAnimationTimer(); }); }
+        void startPause(){ apply(() -> { if(!axisDefined) return; spinning=!spinning; updateAnimationTimer(); }); }
+        void reverse(){ apply(() -> spinDegPerSec = -spinDegPerSec); }
+        void setBackend(Renderer.Backend b){
+            backendSetting = b;
+            apply(() -> renderer.backend = b);
+            firePropertyChange("backend", null, b);
+        }
+        void setSpeedDegPerSec(double v){ apply(() -> spinDegPerSec = v); }
+        void setFrustumCulling(boolean on){ apply(() -> renderer.frustumCulling = on); }
+        void setPackedProjection(boolean on){ apply(() -> renderer.packedProjection = on); }
+        // уровни и их BVH строятся при первом включении LOD, а не при загрузке модели
+        void setLod(boolean on){
+            lodSetting = on;
+            apply(() -> {
+                if (on) for (WireModel lvl : model.lods()) lvl.bvh();
+                renderer.lod = on;
+            });
+            firePropertyChange("lod", !on, on);
+        }
+        // грани строятся до первого кадра (для моделей без граней — поиск циклов рёбер) — в том же изменении,
+        // что и переключатель: моделью в активном режиме владеет поток отрисовки
+        void setHiddenLines(boolean on){
+            hiddenLinesSetting = on;
+            apply(() -> {
+                if (on) model.faces();
+                renderer.hiddenLines = on;
+            });
+            firePropertyChange("hiddenLines", !on, on);
+        }
+        void setHudVisible(boolean on){
+            hudSetting = on;
+            apply(() -> renderer.showHud = on);
+            firePropertyChange("hud", !on, on);
+        }
+        // модель, уже подготовленная openModel (иначе её BVH и прочее достроится лениво в кадре)
+        void setModel(WireModel m){
+            apply(() -> { model = m; rebuildInstances(); });
+        }
+        // загрузка в фоне: разбор файла и постройка BVH не держат EDT, готовая модель уходит в setModel;
+        // onDone вызывается в EDT с null или с причиной ошибки
+        void openModel(Path path, Consumer<Throwable> onDone){
+            boolean lod = lodSetting, hidden = hiddenLinesSetting;
+            new SwingWorker<WireModel, Void>(){
+                @Override protected WireModel doInBackground() throws IOException {
+                    WireModel m = ModelIO.read(path);
+                    m.bvh();
+                    if (lod) for (WireModel lvl : m.lods()) lvl.bvh();
+                    if (hidden) m.faces();
+                    return m;
+                }
+                @Override protected void done(){
+                    try {
+                        setModel(get());
+                        onDone.accept(null);
+                    } catch (ExecutionException ex){
+                        onDone.accept(ex.getCause());
+                    } catch (InterruptedException ex){
+                        Thread.currentThread().interrupt();
+                        onDone.accept(ex);
+                    }
+                }
+            }.execute();
+        }
+        // число копий модели в сцене; 0 — одна модель без собственного вращения
+        void setInstanceCount(int n){ apply(() -> { instanceCount = n; rebuildInstances(); updateAnimationTimer(); }); }
+        private void rebuildInstances(){
+            modelNode.children.clear();
+            modelNode.add(instanceCount > 0 ? Scene.instanceArray(model, instanceCount) : new SceneNode(model));
         }
-        void clearAxis(){ axisDefined=false; spinning=false; repaint(); }
-        void startPause(){ if(!axisDefined) return; spinning=!spinning; lastTickNs=System.nanoTime(); }
-        void reverse(){ spinDegPerSec = -spinDegPerSec; }
-        void setSpeedDegPerSec(double v){ spinDegPerSec = v; }
         void resetAll(){
-            modelMatrix = Mat4.identity();
-            camRadius = 6; camYaw = Math.toRadians(35); camPitch = Math.toRadians(20);
-            fovY = 60; spinning=false; axisDefined=false; repaint();
+            apply(() -> {
+                pose.setIdentity();
+                spin.rebase(pose);
+                pose.toMatrix(modelMatrix);
+                renderer.resetCamera();
+                spinning=false; axisDefined=false;
+                rebuildInstances();
+                updateAnimationTimer();
+            });
+        }
+        void translate(double dx,double dy,double dz){ editPose(() -> pose.preTranslate(dx,dy,dz)); }
+        void scaleUniform(double s){ editPose(() -> pose.preScale(s)); }
+        void rotateX(double a){ editPose(() -> pose.preRotate(tmpQ.setAxisAngle(1,0,0,a), 0,0,0)); }
+        void rotateY(double a){ editPose(() -> pose.preRotate(tmpQ.setAxisAngle(0,1,0,a), 0,0,0)); }
+        void rotateZ(double a){ editPose(() -> pose.preRotate(tmpQ.setAxisAngle(0,0,1,a), 0,0,0)); }
+        // изменение позы пользователем: вращение продолжается от новой позы
+        private void editPose(Runnable change){
+            apply(() -> {
+                change.run();
+                spin.rebase(pose);
+                pose.toMatrix(modelMatrix);
+            });
         }
-        void translate(double dx,double dy,double dz){ modelMatrix = Mat4.translation(dx,dy,dz).mul(modelMatrix); }
-        void scaleUniform(double s){ modelMatrix = Mat4.scale(s,s,s).mul(modelMatrix); }
-        void rotateX(double a){ modelMatrix = Mat4.rotationX(a).mul(modelMatrix); }
-        void rotateY(double a){ modelMatrix = Mat4.rotationY(a).mul(modelMatrix); }
-        void rotateZ(double a){ modelMatrix = Mat4.rotationZ(a).mul(modelMatrix); }
-        void rotateAroundLine(Vec3 P1, Vec3 P2, double angle){
-            Vec3 axis = P2.sub(P1); if(axis.len()==0) return;
-            Mat4 T1 = Mat4.translation(-P1.x, -P1.y, -P1.z);
-            Mat4 R  = Mat4.rotationAroundAxis(axis.normalized(), angle);
-            Mat4 T2 = Mat4.translation(P1.x, P1.y, P1.z);
-            modelMatrix = T2.mul(R).mul(T1).mul(modelMatrix);
+        // шаг вращения вокруг оси: одно преобразование кватерниона в матрицу на кадр
+        void spinStep(double dt){
+            spin.advance(dt, spinDegPerSec);
+            pose.set(spin.update()).toMatrix(modelMatrix);
         }
 
         @Override protected void paintComponent(Graphics g){
             super.paintComponent(g);
+            // флаг снимается до кадра: исключение в render не должно навсегда глушить markDirty
+            repaintPending = false;
+            if (activeLoop != null) return;   // кадры рисует поток активного рендеринга
             Graphics2D g2 = (Graphics2D)g.create();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            int W=getWidth(), H=getHeight();
-
-            double cx = camRadius * Math.cos(camPitch) * Math.cos(camYaw);
-            double cy = camRadius * Math.sin(camPitch);
-            double cz = camRadius * Math.cos(camPitch) * Math.sin(camYaw);
-            Mat4 view = Mat4.lookAt(new Vec3(cx,cy,cz), new Vec3(0,0,0), new Vec3(0,1,0));
-            Mat4 proj = Mat4.perspective(fovY, (double)W/H, zNear, zFar);
-            Mat4 MVP  = proj.mul(view).mul(modelMatrix);
-
-            // проекция вершин
-            java.util.List<Point2D.Double> screen = new ArrayList<>(model.vertices.size());
-            for (Vec3 v : model.vertices){
-                double[] r = MVP.mulVec4(v.x, v.y, v.z, 1.0);
-                if (r[3]==0) continue;
-                r[0]/=r[3]; r[1]/=r[3];
-                double sx=(r[0]*0.5+0.5)*W, sy=(1.0-(r[1]*0.5+0.5))*H;
-                screen.add(new Point2D.Double(sx,sy));
-            }
-
-            // оси
-            drawWorldAxes(g2, W, H, proj, view);
-
-            // рёбра
-            g2.setStroke(new BasicStroke(2f));
-            g2.setColor(new Color(30,30,30));
-            for(int[] e : model.edges){
-                Point2D p1 = screen.get(e[0]);
-                Point2D p2 = screen.get(e[1]);
-                g2.draw(new Line2D.Double(p1, p2));
-            }
-
-            // ось вращения
-            if(axisDefined){
-                Point2D.Double a1 = projectPoint(axisP1, proj.mul(view), W, H);
-                Point2D.Double a2 = projectPoint(axisP2, proj.mul(view), W, H);
-                g2.setStroke(new BasicStroke(1.6f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10, new float[]{6,6}, 0));
-                g2.setColor(new Color(0,120,255));
-                g2.draw(new Line2D.Double(a1, a2));
-                drawHandle(g2, a1, new Color(0,120,255));
-                drawHandle(g2, a2, new Color(0,120,255));
+            try {
+                renderer.render(g2, getWidth(), getHeight(), scene, axisDefined ? axisP1 : null, axisP2);
+                framesRendered++;
+                drawFrameStats(g2, getHeight());
+            } finally {
+                g2.dispose();
             }
-
-            g2.dispose();
         }
-
-        private static void drawHandle(Graphics2D g2, Point2D.Double p, Color c){
-            g2.setColor(Color.white); g2.fill(new Ellipse2D.Double(p.x-4,p.y-4,8,8));
-            g2.setColor(c); g2.setStroke(new BasicStroke(1.5f)); g2.draw(new Ellipse2D.Double(p.x-4,p.y-4,8,8));
+        // отрисовано кадров против 60 Гц-слотов, которые таймер без планировщика потратил бы впустую
+        private void drawFrameStats(Graphics2D g2, int H){
+            long slots = (System.nanoTime() - statsStartNs) / FRAME_SLOT_NS;
+            long skipped = Math.max(0, slots - framesRendered);
+            g2.setColor(STATS_COLOR);
+            g2.setFont(g2.getFont().deriveFont(11f));
+            g2.drawString("кадров: " + framesRendered + "  пропущено: " + skipped + "  объединено запросов: " + requestsCoalesced,
+                    8, H - 8);
+            g2.drawString("рёбер выведено: " + renderer.statDrawn + "  отброшено: " + renderer.statCulled
+                    + "  обрезано: " + renderer.statClipped, 8, H - 22);
+            int y = H - 36;
+            if (renderer.lod){
+                g2.drawString("LOD: упрощено рёбер " + renderer.statSimplified + "  слито в точку (клетка "
+                        + renderer.lodMinPx + " пикс.): " + renderer.statLodSkipped, 8, y);
+                y -= 14;
+            }
+            if (renderer.hiddenLines)
+                g2.drawString(renderer.backend == Renderer.Backend.JAVA2D ? "невидимые линии: только для растровых способов"
+                        : "невидимые линии: граней в кадре " + renderer.triCount, 8, y);
         }
-        private static void drawWorldAxes(Graphics2D g2, int W, int H, Mat4 proj, Mat4 view){
-            Mat4 VP = proj.mul(view);
-            Vec3 O=new Vec3(0,0,0), X=new Vec3(2,0,0), Y=new Vec3(0,2,0), Z=new Vec3(0,0,2);
-            Point2D.Double o=projectPoint(O, VP, W, H);
-            Point2D.Double x=projectPoint(X, VP, W, H);
-            Point2D.Double y=projectPoint(Y, VP, W, H);
-            Point2D.Double z=projectPoint(Z, VP, W, H);
-            Stroke old=g2.getStroke(); g2.setStroke(new BasicStroke(1.8f));
-            g2.setColor(new Color(220,50,47)); g2.draw(new Line2D.Double(o,x)); g2.drawString("X",(int)x.x+4,(int)x.y);
-            g2.setColor(new Color(133,153,0)); g2.draw(new Line2D.Double(o,y)); g2.drawString("Y",(int)y.x+4,(int)y.y);
-            g2.setColor(new Color(38,139,210)); g2.draw(new Line2D.Double(o,z)); g2.drawString("Z",(int)z.x+4,(int)z.y);
-            g2.setStroke(old);
+
+        // ---- активный рендеринг ----
+        void setActiveRendering(boolean on){
+            if (on == (activeLoop != null)) return;
+            if (on){
+                timer.stop();
+                java.awt.Canvas surface = new java.awt.Canvas();
+                surface.setIgnoreRepaint(true);
+                surface.setBackground(getBackground());
+                surface.addMouseListener(this);
+                surface.addMouseMotionListener(this);
+                surface.addMouseWheelListener(this);
+                add(surface, BorderLayout.CENTER);
+                validate();
+                surface.createBufferStrategy(2);
+                ActiveLoop loop = new ActiveLoop(surface);
+                activeLoop = loop;
+                loop.thread.start();
+            } else {
+                ActiveLoop loop = activeLoop;
+                loop.running = false;
+                LockSupport.unpark(loop.thread);
+                try { loop.thread.join(); } catch (InterruptedException ex){ Thread.currentThread().interrupt(); }
+                activeLoop = null;
+                for (Runnable r; (r = pending.poll()) != null; ) r.run();
+                for (BooleanSupplier v; (v = pendingView.poll()) != null; ) v.getAsBoolean();
+                modelNode.invalidate();
+                remove(loop.surface);
+                validate();
+                updateAnimationTimer();
+                markDirty();
+            }
+            firePropertyChange("activeRendering", !on, on);
         }
-        private static Point2D.Double projectPoint(Vec3 v, Mat4 M, int W, int H){
-            double[] r = M.mulVec4(v.x, v.y, v.z, 1.0);
-            if(r[3]==0) r[3]=1e-9;
-            r[0]/=r[3]; r[1]/=r[3];
-            double sx=(r[0]*0.5+0.5)*W, sy=(1.0-(r[1]*0.5+0.5))*H;
-            return new Point2D.Double(sx,sy);
+
+        final class ActiveLoop implements Runnable {
+            final java.awt.Canvas surface;
+            final Thread thread;
+            volatile boolean running = true;
+
+            ActiveLoop(java.awt.Canvas surface){
+                this.surface = surface;
+                thread = new Thread(this, "render-loop");
+                thread.setDaemon(true);
+            }
+
+            // исключение в кадре или в изменении из очереди не должно оставлять замёрзший холст:
+            // поток пишет его в stderr и завершается, отрисовка возвращается EDT (пассивный режим)
+            @Override public void run(){
+                try {
+                    loop();
+                } catch (RuntimeException ex){
+                    System.err.println("Поток отрисовки остановлен, возврат к отрисовке в EDT: " + ex);
+                    ex.printStackTrace();
+                    SwingUtilities.invokeLater(() -> { if (activeLoop == this) setActiveRendering(false); });
+                }
+            }
+            private void loop(){
+                BufferStrategy bs = surface.getBufferStrategy();
+                boolean dirty = true;
+                int lastW = -1, lastH = -1;
+                long prev = System.nanoTime();
+                double acc = 0;
+                while (running){
+                    for (Runnable r; (r = pending.poll()) != null; ){ r.run(); modelNode.invalidate(); dirty = true; }
+                    for (BooleanSupplier v; (v = pendingView.poll()) != null; ) if (v.getAsBoolean()) dirty = true;
+
+                    // фиксированный шаг анимации; отставание больше 0.25 с не догоняем
+                    long now = System.nanoTime();
+                    acc = Math.min(acc + (now-prev)*1e-9, 0.25);
+                    prev = now;
+                    if (animating()){
+                        renderer.profiler.begin(FrameProfiler.Stage.ANIMATION);
+                        boolean spun = false;
+                        for (; acc >= SPIN_STEP_SEC; acc -= SPIN_STEP_SEC){
+                            if (spinning && axisDefined){ spin.advance(SPIN_STEP_SEC, spinDegPerSec); spun = true; }
+                            if (instanceCount > 0) scene.animate(SPIN_STEP_SEC);
+                            dirty = true;
+                        }
+                        // поза считается один раз на кадр, сколько бы шагов ни набралось
+                        if (spun){ pose.set(spin.update()).toMatrix(modelMatrix); modelNode.invalidate(); }
+                        renderer.profiler.end(FrameProfiler.Stage.ANIMATION);
+                    } else acc = 0;
+
+                    int W = surface.getWidth(), H = surface.getHeight();
+                    if (W != lastW || H != lastH){ lastW = W; lastH = H; dirty = true; }
+                    if (dirty && W > 0 && H > 0){
+                        renderFrame(bs, W, H);
+                        dirty = false;
+                    }
+                    // до следующего шага анимации или до нового события
+                    long waitNs = animating() ? (long)((SPIN_STEP_SEC - acc)*1e9) : 50_000_000L;
+                    if (pending.isEmpty() && pendingView.isEmpty() && waitNs > 0) LockSupport.parkNanos(waitNs);
+                }
+            }
+
+            private void renderFrame(BufferStrategy bs, int W, int H){
+                do {
+                    do {
+                        Graphics2D g2 = (Graphics2D)bs.getDrawGraphics();
+                        try {
+                            g2.setColor(getBackground());
+                            g2.fillRect(0, 0, W, H);
+                            renderer.render(g2, W, H, scene, axisDefined ? axisP1 : null, axisP2);
+                            framesRendered++;
+                            drawFrameStats(g2, H);
+                        } finally { g2.dispose(); }
+                    } while (bs.contentsRestored());
+                    bs.show();
+                } while (bs.contentsLost());
+                Toolkit.getDefaultToolkit().sync();
+            }
         }
+
         private void bindKeys(){
             final double t = 0.1;
             final double s = 1.05;
@@ -309,49 +2575,64 @@ public class Affine extends JFrame {
 
             // --- перемещение: W/S по X, A/D по Y, Q/E по Z ---
             im.put(KeyStroke.getKeyStroke("W"), "move+X");
-            am.put("move+X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, +t, 0); repaint(); }});
+            am.put("move+X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, +t, 0); }});
 
             im.put(KeyStroke.getKeyStroke("S"), "move-X");
-            am.put("move-X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, -t, 0); repaint(); }});
+            am.put("move-X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, -t, 0); }});
 
             im.put(KeyStroke.getKeyStroke("A"), "move-Y");
-            am.put("move-Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(-t, 0, 0); repaint(); }});
+            am.put("move-Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(-t, 0, 0); }});
 
             im.put(KeyStroke.getKeyStroke("D"), "move+Y");
-            am.put("move+Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(+t, 0, 0); repaint(); }});
+            am.put("move+Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(+t, 0, 0); }});
 
             im.put(KeyStroke.getKeyStroke("Q"), "move+Z");
-            am.put("move+Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, 0, +t); repaint(); }});
+            am.put("move+Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, 0, +t); }});
 
             im.put(KeyStroke.getKeyStroke("E"), "move-Z");
-            am.put("move-Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, 0, -t); repaint(); }});
+            am.put("move-Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ translate(0, 0, -t); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_UP, 0), "rotate+X");
-            am.put("rotate+X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateX(rotationAngle); repaint(); }});
+            am.put("rotate+X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateX(rotationAngle); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_DOWN, 0), "rotate-X");
-            am.put("rotate-X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateX(-rotationAngle); repaint(); }});
+            am.put("rotate-X", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateX(-rotationAngle); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, 0), "rotate+Y");
-            am.put("rotate+Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateY(rotationAngle); repaint(); }});
+            am.put("rotate+Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateY(rotationAngle); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, 0), "rotate-Y");
-            am.put("rotate-Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateY(-rotationAngle); repaint(); }});
+            am.put("rotate-Y", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateY(-rotationAngle); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_UP, 0), "rotate+Z");
-            am.put("rotate+Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateZ(rotationAngle); repaint(); }});
+            am.put("rotate+Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateZ(rotationAngle); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_PAGE_DOWN, 0), "rotate-Z");
-            am.put("rotate-Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateZ(-rotationAngle); repaint(); }});
+            am.put("rotate-Z", new AbstractAction(){ public void actionPerformed(ActionEvent e){ rotateZ(-rotationAngle); }});
 
             // --- масштаб ---
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, 0), "scale+");
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_ADD, 0), "scale+");
-            am.put("scale+", new AbstractAction(){ public void actionPerformed(ActionEvent e){ scaleUniform(s); repaint(); }});
+            am.put("scale+", new AbstractAction(){ public void actionPerformed(ActionEvent e){ scaleUniform(s); }});
 
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, 0), "scale-");
             im.put(KeyStroke.getKeyStroke(KeyEvent.VK_SUBTRACT, 0), "scale-");
-            am.put("scale-", new AbstractAction(){ public void actionPerformed(ActionEvent e){ scaleUniform(1.0/s); repaint(); }});
+            am.put("scale-", new AbstractAction(){ public void actionPerformed(ActionEvent e){ scaleUniform(1.0/s); }});
+
+            // --- профиль кадра ---
+            im.put(KeyStroke.getKeyStroke("L"), "lod");
+            am.put("lod", new AbstractAction(){ public void actionPerformed(ActionEvent e){ setLod(!lodSetting); }});
+            im.put(KeyStroke.getKeyStroke("V"), "hidden");
+            am.put("hidden", new AbstractAction(){ public void actionPerformed(ActionEvent e){ setHiddenLines(!hiddenLinesSetting); }});
+            im.put(KeyStroke.getKeyStroke("H"), "hud");
+            am.put("hud", new AbstractAction(){ public void actionPerformed(ActionEvent e){ setHudVisible(!hudSetting); }});
+
+            // --- способ отрисовки ---
+            im.put(KeyStroke.getKeyStroke("R"), "backend");
+            am.put("backend", new AbstractAction(){ public void actionPerformed(ActionEvent e){
+                Renderer.Backend[] all = Renderer.Backend.values();
+                setBackend(all[(backendSetting.ordinal()+1) % all.length]);
+            }});
 
         }
         @Override public void mousePressed(MouseEvent e){ lastMouse=e.getPoint(); requestFocusInWindow(); }
@@ -360,22 +2641,49 @@ public class Affine extends JFrame {
             if(lastMouse!=null){
                 int dx=e.getX()-lastMouse.x, dy=e.getY()-lastMouse.y;
                 double sens = 0.008;
-                camYaw   -= dx*sens;
-                camPitch -= dy*sens;
-                camPitch = Math.max(camPitchMin, Math.min(camPitchMax, camPitch));
-                lastMouse=e.getPoint(); repaint();
+                apply(() -> {
+                    renderer.camYaw   -= dx*sens;
+                    renderer.camPitch -= dy*sens;
+                    renderer.camPitch = Math.max(camPitchMin, Math.min(camPitchMax, renderer.camPitch));
+                });
+                lastMouse=e.getPoint();
             }
         }
         @Override public void mouseWheelMoved(MouseWheelEvent e){
+            int rot = e.getWheelRotation();
             if ((e.getModifiersEx() & InputEvent.CTRL_DOWN_MASK) != 0){
-                camRadius = Math.max(1.0, Math.min(50.0, camRadius + e.getWheelRotation()*0.5));
+                apply(() -> renderer.camRadius = Math.max(1.0, Math.min(50.0, renderer.camRadius + rot*0.5)));
             } else {
-                fovY = Math.max(20, Math.min(100, fovY + e.getWheelRotation()*2));
+                apply(() -> renderer.fovY = Math.max(20, Math.min(100, renderer.fovY + rot*2)));
             }
-            repaint();
         }
-        @Override public void mouseMoved(MouseEvent e){}
-        @Override public void mouseClicked(MouseEvent e){}
+        // подсветка вершины/ребра под курсором; перерисовка — только если подсветка сменилась
+        @Override public void mouseMoved(MouseEvent e){
+            int x = e.getX(), y = e.getY();
+            applyView(() -> renderer.hoverAt(x, y, PICK_RADIUS));
+        }
+        // щелчок по ребру — ось вдоль ребра; по вершине — первая, затем вторая точка оси.
+        // Сам щелчок кадра не требует: ось перерисуется через setAxis
+        @Override public void mouseClicked(MouseEvent e){
+            if (e.getButton() != MouseEvent.BUTTON1) return;
+            int x = e.getX(), y = e.getY();
+            applyView(() -> {
+                if (!renderer.pickAt(x, y, PICK_RADIUS)) return false;
+                int line = renderer.pickGrid.hitLine, end = renderer.pickGrid.hitEnd;
+                Vec3 a, b;
+                if (end >= 0){
+                    Vec3 v = renderer.pickedVertex(line, end);
+                    if (pickedP1 == null || pickedP1.sub(v).len() == 0){ pickedP1 = v; return false; }
+                    a = pickedP1; b = v;
+                } else {
+                    a = renderer.pickedVertex(line, 0); b = renderer.pickedVertex(line, 1);
+                    if (a == null || b == null || a.sub(b).len() == 0) return false;
+                }
+                pickedP1 = null;
+                SwingUtilities.invokeLater(() -> setAxis(a, b));
+                return false;
+            });
+        }
         @Override public void mouseEntered(MouseEvent e){}
         @Override public void mouseExited(MouseEvent e){}
     }
@@ -392,6 +2700,15 @@ public class Affine extends JFrame {
         final JButton btnReverse = new JButton("Противоположное направление");
         final JSlider speed = new JSlider(JSlider.HORIZONTAL, -180, 180, 45);
         final JButton btnResetAll = new JButton("Сбросить всё");
+        final JButton btnOpen = new JButton("Открыть модель…");
+        final JComboBox<Renderer.Backend> backend = new JComboBox<>(Renderer.Backend.values());
+        final JCheckBox activeRendering = new JCheckBox("Отдельный поток отрисовки");
+        final JCheckBox frustumCulling = new JCheckBox("Отсечение невидимых рёбер (BVH)");
+        final JCheckBox packedProjection = new JCheckBox("Пакетная проекция (float SoA, без отсечения)", true);
+        final JCheckBox lod = new JCheckBox("Упрощение мелких рёбер (LOD)");
+        final JCheckBox hiddenLines = new JCheckBox("Удаление невидимых линий");
+        final JCheckBox hud = new JCheckBox("Профиль кадра (HUD)");
+        final JComboBox<String> instances = new JComboBox<>(new String[]{"Одна модель", "10 копий", "100 копий", "1000 копий"});
 
         ControlsPanel(Canvas3D canvas){
             setLayout(new GridBagLayout());
@@ -423,9 +2740,21 @@ public class Affine extends JFrame {
             c.gridy++; add(btnStartPause, c);
             c.gridy++; add(btnReverse, c);
 
+            // Отрисовка
+            c.gridy++; add(new JLabel("<html><b>Отрисовка рёбер</b></html>"), c);
+            c.gridy++; add(backend, c);
+            c.gridy++; add(activeRendering, c);
+            c.gridy++; add(frustumCulling, c);
+            c.gridy++; add(packedProjection, c);
+            c.gridy++; add(lod, c);
+            c.gridy++; add(hiddenLines, c);
+            c.gridy++; add(hud, c);
+            c.gridy++; add(instances, c);
+
             // Сброс
             c.gridy++; add(new JSeparator(), c);
             c.gridy++; add(btnResetAll, c);
+            c.gridy++; add(btnOpen, c);
 
             // Значения по умолчанию
             Vec3 c0 = canvas.model.centroid();
@@ -449,6 +2778,50 @@ public class Affine extends JFrame {
             btnReverse.addActionListener(e -> canvas.reverse());
             speed.addChangeListener(e -> canvas.setSpeedDegPerSec(speed.getValue()));
             btnResetAll.addActionListener(e -> canvas.resetAll());
+            btnOpen.addActionListener(e -> {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Каркасные модели (*.obj, *.wire)", "obj", "wire"));
+                if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+                btnOpen.setEnabled(false);
+                canvas.openModel(fc.getSelectedFile().toPath(), err -> {
+                    btnOpen.setEnabled(true);
+                    if (err != null)
+                        JOptionPane.showMessageDialog(this, "Ошибка: "+err.getMessage(), "Загрузка модели", JOptionPane.ERROR_MESSAGE);
+                });
+            });
+            backend.setSelectedItem(canvas.renderer.backend);
+            backend.addActionListener(e -> canvas.setBackend((Renderer.Backend)backend.getSelectedItem()));
+            canvas.addPropertyChangeListener("backend", e -> backend.setSelectedItem(e.getNewValue()));
+            activeRendering.addActionListener(e -> canvas.setActiveRendering(activeRendering.isSelected()));
+            canvas.addPropertyChangeListener("activeRendering", e -> activeRendering.setSelected((Boolean)e.getNewValue()));
+            frustumCulling.setSelected(canvas.renderer.frustumCulling);
+            frustumCulling.addActionListener(e -> {
+                canvas.setFrustumCulling(frustumCulling.isSelected());
+                packedProjection.setEnabled(!frustumCulling.isSelected());
+            });
+            // способ проекции (и её распараллеливание) влияет только на кадр без отсечения
+            packedProjection.setToolTipText("Действует при выключенном отсечении: с BVH вершины проецируются поштучно");
+            packedProjection.setEnabled(!canvas.renderer.frustumCulling);
+            packedProjection.addActionListener(e -> canvas.setPackedProjection(packedProjection.isSelected()));
+            lod.addActionListener(e -> canvas.setLod(lod.isSelected()));
+            canvas.addPropertyChangeListener("lod", e -> lod.setSelected((Boolean)e.getNewValue()));
+            hiddenLines.addActionListener(e -> canvas.setHiddenLines(hiddenLines.isSelected()));
+            canvas.addPropertyChangeListener("hiddenLines", e -> hiddenLines.setSelected((Boolean)e.getNewValue()));
+            hud.addActionListener(e -> canvas.setHudVisible(hud.isSelected()));
+            canvas.addPropertyChangeListener("axis", e -> {
+                Vec3[] axis = (Vec3[])e.getNewValue();
+                p1x.setText(String.format(Locale.US,"%.2f", axis[0].x));
+                p1y.setText(String.format(Locale.US,"%.2f", axis[0].y));
+                p1z.setText(String.format(Locale.US,"%.2f", axis[0].z));
+                p2x.setText(String.format(Locale.US,"%.2f", axis[1].x));
+                p2y.setText(String.format(Locale.US,"%.2f", axis[1].y));
+                p2z.setText(String.format(Locale.US,"%.2f", axis[1].z));
+            });
+            instances.addActionListener(e -> {
+                int i = instances.getSelectedIndex();
+                canvas.setInstanceCount(i == 0 ? 0 : (int)Math.pow(10, i));
+            });
+            canvas.addPropertyChangeListener("hud", e -> hud.setSelected((Boolean)e.getNewValue()));
 
             JLabel help = new JLabel(
                     "<html>" +
@@ -456,6 +2829,11 @@ public class Affine extends JFrame {
                             "W/S,A/D,Q/E — перемещение<br>" +
                             "+/- — масштаб<br>" +
                             "Стрелки/PgUp/PgUp - вращение вокруг осей<br>" +
+                            "R — способ отрисовки рёбер<br>" +
+                            "H — профиль кадра<br>" +
+                            "L — упрощение мелких рёбер<br>" +
+                            "V — удаление невидимых линий<br>" +
+                            "Щелчок по ребру — ось вдоль него,<br>по двум вершинам — ось через них<br>" +
                             "</html>"
             );
             help.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
@@ -477,6 +2855,750 @@ public class Affine extends JFrame {
         }
     }
 
+    // ---------- Замеры производительности ----------
+    // Запуск без окна: java -Djava.awt.headless=true Affine --bench [фильтр]
+    static class Bench {
+        static volatile double sink;
+        static final long WARMUP_NS = 1_000_000_000L, MEASURE_NS = 2_000_000_000L;
+
+        static void main(String[] args){
+            String filter = args.length>0 ? args[0] : "";
+            System.out.println(String.format(Locale.US, "%-34s %14s %12s %8s %8s", "benchmark", "ns/op", "B/op", "gc", "gc ms"));
+
+            Random rnd = new Random(42);
+            Mat4 a = new Mat4(), b = new Mat4(), r = new Mat4();
+            for (int i=0;i<16;i++){ a.m[i]=rnd.nextDouble(); b.m[i]=rnd.nextDouble(); }
+            run(filter, "mat4.mul", 1, () -> sink += a.mul(b).m[5]);
+            run(filter, "mat4.mulInto", 1, () -> sink += r.mulInto(a, b).m[5]);
+            run(filter, "mat4.mulVec4", 1, () -> sink += a.mulVec4(sink, 2, 3, 1)[1]);
+            run(filter, "mat4.rotationAroundAxis", 1, () -> sink += Mat4.rotationAroundAxis(new Vec3(0.6, 0.8, 0), sink).m[0]);
+
+            // шаг анимации: старый путь T2*R*T1 и новый одной матрицей
+            Vec3 P1 = new Vec3(0.8, 1.1, 0.5), P2 = new Vec3(1, 1, 0);
+            Mat4 model = new Mat4(), tmp = new Mat4();
+            double da = Math.toRadians(45.0/60);
+            run(filter, "rotateAroundLine.compose", 1, () -> {
+                Vec3 axis = P2.sub(P1);
+                Mat4 T1 = Mat4.translation(-P1.x, -P1.y, -P1.z);
+                Mat4 R  = Mat4.rotationAroundAxis(axis.normalized(), da);
+                Mat4 T2 = Mat4.translation(P1.x, P1.y, P1.z);
+                sink += T2.mul(R).mul(T1).mul(model).m[0];
+            });
+            run(filter, "rotateAroundLine.inPlace", 1, () -> sink += model.preMultiply(tmp.setRotationAroundLine(P1, P2, da)).m[0]);
+            Spin spin = new Spin();
+            spin.setAxis(P1, P2);
+            run(filter, "rotateAroundLine.spinPose", 1, () -> {
+                spin.advance(1.0/60, 45);
+                sink += spin.update().toMatrix(model).m[0];
+            });
+
+            // полный проход проекции кадра: вершины + сборка рёбер
+            Mat4 MVP = Mat4.perspective(60, 900.0/680, 0.1, 100)
+                    .mul(Mat4.lookAt(new Vec3(4.1, 2.1, 2.9), new Vec3(0,0,0), new Vec3(0,1,0)));
+            projectFrame(filter, "frame.letterB", WireModel.letterB(1.5), MVP);
+            for (int edges : new int[]{10_000, 100_000, 1_000_000})
+                projectFrame(filter, "frame.grid" + edges/1000 + "k", WireModel.gridWithEdges(edges, 3), MVP);
+
+            // проекция 1M вершин: поштучно (mulVec4), пакетом в double и SoA float-ядром
+            projectVertices(filter, 1_000_000, MVP);
+
+            // та же проекция частями в пуле ForkJoin; результат обязан совпасть побитно с последовательным
+            parallelProjection(filter, 2_000_000);
+
+            // сцена из 1000 копий letterB: шаг вращения копий, пересчёт мировых матриц и сборка отрезков
+            sceneFrame(filter, 1000);
+
+            // выбор под курсором: сетка против перебора по отрезкам кадра 1M рёбер
+            pickFrame(filter, WireModel.gridWithEdges(1_000_000, 3));
+
+            // LOD: та же сетка 1M рёбер издалека, без упрощения и с ним
+            lodFrame(filter, WireModel.gridWithEdges(1_000_000, 3));
+
+            // сборка отрезков кадра с BVH-отсечением и без, камера близко и узкий угол — видна малая часть сетки
+            cullingFrame(filter, WireModel.gridWithEdges(1_000_000, 3));
+
+            // загрузка сетки из 2M рёбер: OBJ с гранями-квадами и тот же меш в WIRE
+            loadTimes(filter, 2_000_000);
+
+            // растеризация 1M рёбер: один поток и тайлы на 1..N потоках
+            rasterScaling(filter, WireModel.gridWithEdges(1_000_000, 3));
+
+            // удаление невидимых линий на сетке 100k рёбер (грани из циклов рёбер): у плоской сетки
+            // все рёбра лежат на гранях, и картинка обязана совпасть с обычной растеризацией
+            hiddenFrame(filter, WireModel.gridWithEdges(100_000, 3));
+        }
+
+        static void hiddenFrame(String filter, WireModel m){
+            if (!"hidden.grid100k".contains(filter) && !filter.startsWith("hidden")) return;
+            int W = 1280, H = 720;
+            long t0 = System.nanoTime();
+            int faces = m.faces().length/3;
+            System.out.println(String.format(Locale.US, "hidden: %d faces from edge cycles in %.0f ms", faces, (System.nanoTime()-t0)*1e-6));
+            Renderer rr = new Renderer();
+            rr.backend = Renderer.Backend.RASTER;
+            rr.updateCamera(W, H);
+            Mat4 I = Mat4.identity();
+            rr.raster.ensureSize(W, H);
+            int[] plain = new int[W*H];
+            run(filter, "hidden.off.grid100k", 1, () -> {
+                rr.buildLines(m, I, W, H);
+                rr.raster.clear(0xFFFFFF);
+                rr.rasterizeTiled(W, H);
+            });
+            // эталон рисуем отдельно: замер выше мог не выполниться под фильтром
+            System.arraycopy(hiddenRender(rr, m, I, W, H, false), 0, plain, 0, plain.length);
+            rr.hiddenLines = true;
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int t=1; ; t=Math.min(2*t, cores)){
+                rr.setParallelism(t);
+                run(filter, "hidden.on.grid100k.t" + t, 1, () -> {
+                    rr.buildLines(m, I, W, H);
+                    rr.raster.clear(0xFFFFFF);
+                    rr.rasterizeHidden(W, H);
+                });
+                if (t==cores) break;
+            }
+            rr.setParallelism(0);
+            int[] hidden = hiddenRender(rr, m, I, W, H, true);
+            int diff = 0;
+            for (int i=0; i<plain.length; i++) if (plain[i] != hidden[i]) diff++;
+            System.out.println(String.format(Locale.US, "  hidden: %d triangles, %d pixels differ from plain raster%s",
+                    rr.triCount, diff, diff == 0 ? "" : "  MISMATCH"));
+
+            // заслонение: у тора дальние рёбра закрыты ближней половиной — пиксели должны пропасть, новых быть не должно
+            WireModel torus = WireModel.torus(48, 24, 1.5, 0.5);
+            int[] a = hiddenRender(rr, torus, I, W, H, false), b = hiddenRender(rr, torus, I, W, H, true);
+            int suppressed = 0, added = 0;
+            for (int i=0; i<a.length; i++){
+                if (a[i] != b[i]){ if (b[i] == 0xFFFFFF) suppressed++; else added++; }
+            }
+            System.out.println(String.format(Locale.US, "  hidden.torus: %d pixels suppressed, %d added%s",
+                    suppressed, added, suppressed > 0 && added == 0 ? "" : "  MISMATCH"));
+
+            // ближняя плоскость: наклонная стена от z=-0.05 (перед zNear) до z=-4 в координатах камеры
+            // заслоняет отрезок на z=-6; без обрезки граней стена целиком пропала бы и отрезок остался бы виден
+            Renderer rn = new Renderer();
+            rn.backend = Renderer.Backend.RASTER;
+            rn.updateCamera(W, H);
+            rn.VP.set(rn.proj);
+            rn.raster.ensureSize(W, H);
+            WireModel wall = new WireModel(6, 5);
+            int w0 = wall.addVertex(-2, -0.02, -0.05), w1 = wall.addVertex(2, -0.02, -0.05);
+            int w2 = wall.addVertex(2, 1.0, -4), w3 = wall.addVertex(-2, 1.0, -4);
+            wall.addEdge(w0, w1); wall.addEdge(w1, w2); wall.addEdge(w2, w3); wall.addEdge(w3, w0);
+            wall.addPolygon(new int[]{w0, w1, w2, w3}, 4);
+            wall.addEdge(wall.addVertex(-1, 0.5, -6), wall.addVertex(1, 0.5, -6));
+            int row = (int)Math.round((1 - rn.proj.m[5]*0.5/6)*H/2);
+            int x0 = (int)Math.ceil((1 - rn.proj.m[0]/6)*W/2), x1 = (int)Math.floor((1 + rn.proj.m[0]/6)*W/2);
+            int[] near = hiddenRender(rn, wall, I, W, H, false), nearHidden = hiddenRender(rn, wall, I, W, H, true);
+            int shown = 0, shownHidden = 0;
+            for (int y=row-1; y<=row+1; y++)
+                for (int x=x0; x<=x1; x++){
+                    if (near[y*W+x] != 0xFFFFFF) shown++;
+                    if (nearHidden[y*W+x] != 0xFFFFFF) shownHidden++;
+                }
+            System.out.println(String.format(Locale.US, "  hidden.near: back segment %d px plain, %d px hidden, %d triangles%s",
+                    shown, shownHidden, rn.triCount, shown > 0 && shownHidden == 0 ? "" : "  MISMATCH"));
+        }
+        // кадр в raster (обычный или с удалением невидимых линий) — копия пикселей
+        static int[] hiddenRender(Renderer rr, WireModel m, Mat4 M, int W, int H, boolean hidden){
+            rr.hiddenLines = hidden;
+            rr.buildLines(m, M, W, H);
+            rr.raster.clear(0xFFFFFF);
+            if (hidden) rr.rasterizeHidden(W, H); else rr.rasterizeTiled(W, H);
+            return rr.raster.px.clone();
+        }
+
+        static void cullingFrame(String filter, WireModel m){
+            int W = 1280, H = 720;
+            Renderer rr = new Renderer();
+            rr.camRadius = 1.2; rr.fovY = 20;
+            rr.updateCamera(W, H);
+            Mat4 I = Mat4.identity();
+            m.bvh();
+            rr.frustumCulling = false;
+            run(filter, "lines.all.grid1000k", 1, () -> rr.buildLines(m, I, W, H));
+            rr.frustumCulling = true;
+            run(filter, "lines.bvh.grid1000k", 1, () -> rr.buildLines(m, I, W, H));
+            if ("lines.bvh.grid1000k".contains(filter))
+                System.out.println(String.format(Locale.US, "  bvh: drawn %d, culled %d, clipped %d", rr.statDrawn, rr.statCulled, rr.statClipped));
+        }
+
+        static void loadTimes(String filter, int edges){
+            if (!"load.obj".contains(filter) && !"load.wire".contains(filter)) return;
+            Path obj = null, wire = null;
+            try {
+                obj = Files.createTempFile("bench", ".obj");
+                wire = Files.createTempFile("bench", ".wire");
+                int n = Math.max(1, (int)Math.round(Math.sqrt(edges/2.0))), k = n+1;
+                try (BufferedWriter out = Files.newBufferedWriter(obj, StandardCharsets.ISO_8859_1)){
+                    for (int j=0;j<k;j++) for (int i=0;i<k;i++) out.write("v " + i + " " + j + " 0\n");
+                    for (int j=0;j<n;j++) for (int i=0;i<n;i++){
+                        int a = j*k+i+1;
+                        out.write("f " + a + " " + (a+1) + " " + (a+k+1) + " " + (a+k) + "\n");
+                    }
+                }
+                ModelIO.writeWire(ModelIO.readObj(obj), wire);
+                System.out.println(String.format(Locale.US, "  files: obj %.1f MB, wire %.1f MB",
+                        Files.size(obj)/1e6, Files.size(wire)/1e6));
+                Path o = obj, w = wire;
+                run(filter, "load.obj", 1, () -> { try { sink += ModelIO.readObj(o).edgeCount; } catch (IOException ex){ throw new UncheckedIOException(ex); } });
+                run(filter, "load.wire", 1, () -> { try { sink += ModelIO.readWire(w).edgeCount; } catch (IOException ex){ throw new UncheckedIOException(ex); } });
+            } catch (IOException ex){
+                System.out.println("  load: " + ex.getMessage());
+            } finally {
+                try { if (obj != null) Files.deleteIfExists(obj); if (wire != null) Files.deleteIfExists(wire); } catch (IOException ignored){}
+            }
+        }
+
+        static void rasterScaling(String filter, WireModel m){
+            int W = 1280, H = 720;
+            Renderer rr = new Renderer();
+            rr.backend = Renderer.Backend.RASTER;
+            rr.updateCamera(W, H);
+            rr.buildLines(m, Mat4.identity(), W, H);
+            rr.raster.ensureSize(W, H);
+            run(filter, "raster.single", 1, () -> rr.rasterizeLines(0, 0, W, H));
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int t=1; ; t=Math.min(2*t, cores)){
+                rr.setParallelism(t);
+                run(filter, "raster.tiled.t" + t, 1, () -> rr.rasterizeTiled(W, H));
+                if (t==cores) break;
+            }
+            rr.setParallelism(0);
+        }
+
+        static void projectVertices(String filter, int n, Mat4 MVP){
+            Random rnd = new Random(7);
+            WireModel m = new WireModel(n, 0);
+            for (int i=0;i<n;i++) m.addVertex(rnd.nextDouble()*3-1.5, rnd.nextDouble()*3-1.5, rnd.nextDouble()*3-1.5);
+            m.packCoords();
+            double[] screen = new double[2*n];
+            float[] sx = new float[n], sy = new float[n];
+            double hw = 450, hh = 340;
+            run(filter, "project.mulVec4." + n/1000 + "k", 1, () -> {
+                double[] x = m.xyz;
+                for (int i=0, j=0; i<n; i++, j+=3){
+                    double[] r = MVP.mulVec4(x[j], x[j+1], x[j+2], 1);
+                    screen[2*i] = (r[0]/r[3]*0.5+0.5)*2*hw;
+                    screen[2*i+1] = (1-(r[1]/r[3]*0.5+0.5))*2*hh;
+                }
+                sink += screen[n];
+            });
+            run(filter, "project.batch." + n/1000 + "k", 1, () -> {
+                MVP.projectBatch(m.xyz, n, 900, 680, screen);
+                sink += screen[n];
+            });
+            run(filter, "project.packed." + n/1000 + "k", 1, () -> {
+                MVP.projectPacked(m.px, m.py, m.pz, n, 900, 680, sx, sy);
+                sink += sx[n/2];
+            });
+            if (("project.packed." + n/1000 + "k").contains(filter)){
+                // эталон считаем здесь: замер project.batch мог не выполниться под фильтром
+                MVP.projectBatch(m.xyz, n, 900, 680, screen);
+                double maxErr = 0;
+                for (int i=0;i<n;i++) maxErr = Math.max(maxErr, Math.max(Math.abs(sx[i]-screen[2*i]), Math.abs(sy[i]-screen[2*i+1])));
+                System.out.println(String.format(Locale.US, "project: max |packed - batch| = %.4f px", maxErr));
+            }
+        }
+
+        static void parallelProjection(String filter, int edges){
+            int cores = Runtime.getRuntime().availableProcessors();
+            int[] threads = cores <= 2 ? new int[]{2} : new int[]{2, cores};
+            // модель на 2M рёбер и пул строятся, только если фильтр выбирает замер или проверку project.par
+            boolean timed = false;
+            for (String p : new String[]{"packed", "batch"}){
+                timed |= ("project.seq." + p).contains(filter);
+                for (int t : threads) timed |= ("project.par.t" + t + "." + p).contains(filter);
+            }
+            boolean check = "project.par".contains(filter) || filter.startsWith("project.par");
+            if (!timed && !check) return;
+            WireModel m = WireModel.gridWithEdges(edges, 3);
+            int W = 1280, H = 720, V = m.vertexCount;
+            Renderer rr = new Renderer();
+            rr.updateCamera(W, H);
+            rr.MVP.set(rr.VP);
+            m.packCoords();
+            rr.screenX = new float[V]; rr.screenY = new float[V]; rr.screen = new double[2*V];
+            rr.setParallelism(1);
+            for (boolean packed : new boolean[]{true, false}){
+                rr.packedProjection = packed;
+                run(filter, "project.seq." + (packed ? "packed" : "batch"), 1, () -> rr.projectVertices(m, W, H));
+            }
+            for (int t : threads){
+                rr.setParallelism(t);
+                for (boolean packed : new boolean[]{true, false}){
+                    rr.packedProjection = packed;
+                    run(filter, "project.par.t" + t + "." + (packed ? "packed" : "batch"), 1, () -> rr.projectVertices(m, W, H));
+                }
+            }
+            rr.setParallelism(0);
+            if (!check) return;
+
+            // проверка: параллельный результат равен последовательному для разных размеров частей
+            float[] sx = new float[V], sy = new float[V];
+            double[] sd = new double[2*V];
+            Mat4 mvp = rr.MVP;
+            mvp.projectPacked(m.px, m.py, m.pz, V, W, H, sx, sy);
+            mvp.projectBatch(m.xyz, V, W, H, sd);
+            rr.setParallelism(4);
+            for (int chunk : new int[]{1000, 4096, 1 << 16, 333_333}){
+                rr.projectionChunk = chunk;
+                Arrays.fill(rr.screenX, 0); Arrays.fill(rr.screen, 0);
+                rr.packedProjection = true;  rr.projectVertices(m, W, H);
+                rr.packedProjection = false; rr.projectVertices(m, W, H);
+                boolean same = Arrays.equals(sx, 0, V, rr.screenX, 0, V) && Arrays.equals(sy, 0, V, rr.screenY, 0, V)
+                        && Arrays.equals(sd, 0, 2*V, rr.screen, 0, 2*V);
+                System.out.println("project.par: chunk " + chunk + (same ? " identical" : " MISMATCH"));
+                if (!same) throw new AssertionError("параллельная проекция отличается от последовательной");
+            }
+            rr.setParallelism(0);
+        }
+
+        static void sceneFrame(String filter, int instances){
+            int W = 1280, H = 720;
+            Renderer rr = new Renderer();
+            Scene scene = new Scene();
+            SceneNode group = scene.root.add(Scene.instanceArray(WireModel.letterB(1.5), instances));
+            rr.updateCamera(W, H);
+            for (boolean culling : new boolean[]{false, true}){
+                rr.frustumCulling = culling;
+                run(filter, "scene.i" + instances + (culling ? ".bvh" : ".all"), 1, () -> {
+                    scene.animate(1.0/60);
+                    scene.update();
+                    rr.beginLines(W, H);
+                    rr.appendNode(scene.root, W, H);
+                    sink += rr.lineCount;
+                });
+            }
+            // перемещение всей группы — пересчитываются все узлы; без изменений — ни одного
+            group.local.setTranslation(0.1, 0, 0); group.invalidate();
+            int moved = scene.update(), idle = scene.update();
+            if (("scene.i" + instances).contains(filter) || filter.startsWith("scene"))
+                System.out.println("scene: updated after move " + moved + ", when idle " + idle);
+        }
+
+        static void pickFrame(String filter, WireModel m){
+            int W = 1280, H = 720;
+            Renderer rr = new Renderer();
+            rr.frustumCulling = false;
+            rr.updateCamera(W, H);
+            rr.buildLines(m, Mat4.identity(), W, H);
+            rr.endLines();
+            PickGrid pg = rr.pickGrid;
+            double[] L = rr.lines;
+            int n = rr.lineCount;
+            Random rnd = new Random(3);
+            double[] pts = new double[2*4096];
+            for (int i=0;i<pts.length;i+=2){ pts[i] = rnd.nextDouble()*W; pts[i+1] = rnd.nextDouble()*H; }
+            int[] k = {0};
+            run(filter, "pick.build.grid1000k", 1, () -> { pg.build(L, n, W, H); sink += pg.cellStart[1]; });
+            run(filter, "pick.grid.grid1000k", 1, () -> {
+                int i = (k[0] = (k[0]+2) & (pts.length-1));
+                sink += pg.pick(L, pts[i], pts[i+1], 6) ? pg.hitLine : 0;
+            });
+            run(filter, "pick.brute.grid1000k", 1, () -> {
+                int i = (k[0] = (k[0]+2) & (pts.length-1));
+                sink += pg.pickBrute(L, n, pts[i], pts[i+1], 6) ? pg.hitLine : 0;
+            });
+
+            if (!"pick.grid.grid1000k".contains(filter) && !filter.startsWith("pick")) return;
+            // одинаковый ответ сетки и перебора (по расстоянию — при равных расстояниях номера могут различаться)
+            pg.build(L, n, W, H);
+            int hits = 0;
+            for (int i=0;i<pts.length;i+=2){
+                boolean g = pg.pick(L, pts[i], pts[i+1], 6);
+                int gl = pg.hitLine, ge = pg.hitEnd;
+                boolean b = pg.pickBrute(L, n, pts[i], pts[i+1], 6);
+                int bl = pg.hitLine, be = pg.hitEnd;
+                if (g != b || (g && (ge < 0) != (be < 0)) || (g && hitDist(L, pts[i], pts[i+1], gl, ge) != hitDist(L, pts[i], pts[i+1], bl, be)))
+                    throw new AssertionError("выбор сеткой отличается от перебора в точке " + pts[i] + ", " + pts[i+1]);
+                if (g) hits++;
+            }
+            System.out.println("pick: grid == brute force at " + pts.length/2 + " points, " + hits + " hits");
+        }
+        private static double hitDist(double[] L, double x, double y, int line, int end){
+            int o = 4*line;
+            return end >= 0 ? PickGrid.dist2(x, y, L[o+2*end], L[o+2*end+1]) : PickGrid.segDist2(x, y, L[o], L[o+1], L[o+2], L[o+3]);
+        }
+
+        static void lodFrame(String filter, WireModel m){
+            if (!"lod.off.r50".contains(filter) && !filter.startsWith("lod")) return;
+            int W = 1280, H = 720;
+            long t0 = System.nanoTime();
+            WireModel[] levels = m.lods();
+            for (WireModel lvl : levels) lvl.bvh();
+            System.out.println(String.format(Locale.US, "lod: %d levels built in %.0f ms, edges:", levels.length, (System.nanoTime()-t0)*1e-6)
+                    + Arrays.stream(levels).map(l -> " " + l.edgeCount).reduce("", String::concat));
+            Renderer rr = new Renderer();
+            Mat4 I = Mat4.identity();
+            for (double radius : new double[]{6, 20, 50}){
+                rr.camRadius = radius;
+                rr.updateCamera(W, H);
+                for (boolean lod : new boolean[]{false, true}){
+                    rr.lod = lod;
+                    String name = "lod." + (lod ? "on" : "off") + ".r" + (int)radius;
+                    run(filter, name, 1, () -> {
+                        rr.buildLines(m, I, W, H);
+                        rr.raster.ensureSize(W, H);
+                        rr.raster.clear(0xFFFFFF);
+                        rr.rasterizeLines(0, 0, W, H);
+                        sink += rr.lineCount;
+                    });
+                    System.out.println(String.format(Locale.US, "  %s: drawn %d, simplified away %d, sub-pixel %d",
+                            name, rr.statDrawn, rr.statSimplified, rr.statLodSkipped));
+                }
+            }
+        }
+
+        static void projectFrame(String filter, String name, WireModel m, Mat4 MVP){
+            double[] screen = new double[2*m.vertexCount];
+            run(filter, name, 1, () -> {
+                MVP.projectBatch(m.xyz, m.vertexCount, 900, 680, screen);
+                int[] ei = m.edgeIdx; double acc = 0;
+                for (int i=0, n2=2*m.edgeCount; i<n2; i+=2){
+                    int p=2*ei[i], q=2*ei[i+1];
+                    acc += screen[q]-screen[p] + screen[q+1]-screen[p+1];
+                }
+                sink += acc;
+            });
+        }
+
+        // прогрев, затем замер; ops — число операций за один вызов body
+        static void run(String filter, String name, int ops, Runnable body){
+            if (!name.contains(filter)) return;
+            loop(body, WARMUP_NS);
+            long gcCount0 = gcCount(), gcTime0 = gcTimeMs(), alloc0 = allocatedBytes();
+            long t0 = System.nanoTime();
+            long calls = loop(body, MEASURE_NS);
+            long t1 = System.nanoTime();
+            long alloc = allocatedBytes() - alloc0;
+            double perOp = (double)ops*calls;
+            System.out.println(String.format(Locale.US, "%-34s %14.1f %12.1f %8d %8d",
+                    name, (t1-t0)/perOp, alloc < 0 ? Double.NaN : alloc/perOp, gcCount()-gcCount0, gcTimeMs()-gcTime0));
+        }
+        private static long loop(Runnable body, long budgetNs){
+            long calls = 0, batch = 1, end = System.nanoTime() + budgetNs;
+            while (System.nanoTime() < end){
+                for (long i=0;i<batch;i++) body.run();
+                calls += batch;
+                if (batch < 1<<20) batch <<= 1;
+            }
+            return calls;
+        }
+        private static long allocatedBytes(){
+            java.lang.management.ThreadMXBean tb = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (tb instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean)tb).getThreadAllocatedBytes(Thread.currentThread().getId());
+            return -1;
+        }
+        static long gcCount(){
+            long n=0; for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) n+=Math.max(0, gc.getCollectionCount());
+            return n;
+        }
+        static long gcTimeMs(){
+            long n=0; for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) n+=Math.max(0, gc.getCollectionTime());
+            return n;
+        }
+    }
+
+    // ---------- Долгое вращение ----------
+    // java Affine --soak [ticks=10000000]
+    // ticks шагов по 1/60 с при 45°/с: старым способом (домножение матрицы каждый тик) и через Spin.
+    // Печатает отклонение поворотной части от ортонормированной; код возврата 1, если Spin отклонился.
+    static class SpinSoak {
+        static final double TOLERANCE = 1e-12;
+
+        static void main(String[] args){
+            long ticks = Long.parseLong(HeadlessRender.parseOptions(args).getOrDefault("ticks", "10000000"));
+            Vec3 P1 = new Vec3(0.8, 1.1, 0.5), P2 = new Vec3(1, 1, 0);
+            double dt = 1.0/60, degPerSec = Canvas3D.DEFAULT_SPIN_DEG_PER_SEC;
+
+            Mat4 accumulated = Mat4.rotationX(0.3).preMultiply(Mat4.translation(0.5, -0.2, 0.1)), tmp = new Mat4();
+            Pose base = new Pose().preRotate(new Quat().setAxisAngle(1, 0, 0, 0.3), 0, 0, 0).preTranslate(0.5, -0.2, 0.1);
+            Spin spin = new Spin();
+            spin.setAxis(P1, P2);
+            spin.rebase(base);
+            Mat4 analytic = new Mat4();
+
+            long t0 = System.nanoTime();
+            for (long i=0; i<ticks; i++) accumulated.preMultiply(tmp.setRotationAroundLine(P1, P2, Math.toRadians(degPerSec*dt)));
+            long t1 = System.nanoTime();
+            double worst = 0;
+            for (long i=0; i<ticks; i++){
+                spin.advance(dt, degPerSec);
+                spin.update().toMatrix(analytic);
+                if ((i & 0xFFFF) == 0) worst = Math.max(worst, orthoError(analytic));
+            }
+            worst = Math.max(worst, orthoError(analytic));
+            long t2 = System.nanoTime();
+
+            System.out.println(String.format(Locale.US, "ticks: %d (%.1f h at 60 Hz)", ticks, ticks/60.0/3600));
+            System.out.println(String.format(Locale.US, "accumulated matrix: orthonormality error %.3e, %.1f ns/tick",
+                    orthoError(accumulated), (t1-t0)/(double)ticks));
+            System.out.println(String.format(Locale.US, "spin pose:          orthonormality error %.3e (worst %.3e), %.1f ns/tick",
+                    orthoError(analytic), worst, (t2-t1)/(double)ticks));
+            if (worst > TOLERANCE){
+                System.out.println("FAIL: поворот перестал быть ортонормированным");
+                System.exit(1);
+            }
+            System.out.println("OK");
+        }
+
+        // max |R^T R - I| по верхнему блоку 3x3
+        static double orthoError(Mat4 M){
+            double[] m = M.m;
+            double err = 0;
+            for (int i=0;i<3;i++) for (int j=0;j<3;j++){
+                double d = m[4*i]*m[4*j] + m[4*i+1]*m[4*j+1] + m[4*i+2]*m[4*j+2] - (i==j ? 1 : 0);
+                err = Math.max(err, Math.abs(d));
+            }
+            return err;
+        }
+    }
+
+    // ---------- Рендер без окна ----------
+    // java -Djava.awt.headless=true Affine --render [frames=600] [warmup=120] [size=1280x720] [model=letterB|grid:100000|sphere:N|torus:N|soup:N|text:N|file.obj|file.wire]
+    //         [backend=java2d|raster|raster_aa] [threads=N] [culling=true|false] [projection=packed|scalar] [chunk=N] [instances=N] [lod=true] [lodpx=1.0] [radius=R] [hidden=true] [hud=true] [out=frame.png]
+    // Крутит модель вокруг оси (как кнопка «Старт») с шагом 1/60 с и рисует кадры в BufferedImage так быстро, как может.
+    static class HeadlessRender {
+        static void main(String[] args){
+            Map<String,String> opt = parseOptions(args);
+            int frames = Integer.parseInt(opt.getOrDefault("frames", "600"));
+            int warmup = Integer.parseInt(opt.getOrDefault("warmup", "120"));
+            String[] size = opt.getOrDefault("size", "1280x720").split("x");
+            int W = Integer.parseInt(size[0]), H = Integer.parseInt(size[1]);
+            WireModel model = modelByName(opt.getOrDefault("model", "letterB"));
+            int instances = Integer.parseInt(opt.getOrDefault("instances", "0"));
+
+            Renderer renderer = configure(opt);
+            prepare(renderer, model);
+            BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+            long[] frameNs = new long[frames];
+            renderFrames(renderer, model, instances, img, warmup, frameNs, Long.MAX_VALUE);
+            long total = 0;
+            for (long ns : frameNs) total += ns;
+
+            Arrays.sort(frameNs);
+            System.out.println(String.format(Locale.US, "model: %d vertices, %d edges; instances %d; frame %dx%d; frames %d",
+                    model.vertexCount, model.edgeCount, Math.max(1, instances), W, H, frames));
+            System.out.println(String.format(Locale.US, "fps: %.1f", frames/(total*1e-9)));
+            System.out.println(String.format(Locale.US, "last frame edges: drawn %d, culled %d, clipped %d",
+                    renderer.statDrawn, renderer.statCulled, renderer.statClipped));
+            if (renderer.lod)
+                System.out.println(String.format(Locale.US, "lod: %d levels, simplified away %d, merged into a %.2f px cell %d",
+                        model.lods().length, renderer.statSimplified, renderer.lodMinPx, renderer.statLodSkipped));
+            if (renderer.hiddenLines)
+                System.out.println(String.format(Locale.US, "hidden lines: %d faces in model, %d triangles in last frame",
+                        model.faces().length/3, renderer.triCount));
+            StringBuilder stages = new StringBuilder("stage avg ms:");
+            for (FrameProfiler.Stage st : FrameProfiler.Stage.values())
+                stages.append(String.format(Locale.US, "  %s %.3f", st.name().toLowerCase(Locale.ROOT), renderer.profiler.avgMs[st.ordinal()]));
+            System.out.println(stages);
+            System.out.println(String.format(Locale.US, "frame ms: p50 %.3f  p90 %.3f  p99 %.3f  max %.3f",
+                    percentileMs(frameNs, 0.50), percentileMs(frameNs, 0.90), percentileMs(frameNs, 0.99), frameNs[frames-1]*1e-6));
+
+            String out = opt.get("out");
+            if (out != null){
+                try { javax.imageio.ImageIO.write(img, "png", new java.io.File(out)); }
+                catch (java.io.IOException ex){ System.err.println("Не удалось записать "+out+": "+ex.getMessage()); }
+            }
+        }
+
+        // Renderer по параметрам командной строки (общим для --render и --stress)
+        static Renderer configure(Map<String,String> opt){
+            Renderer renderer = new Renderer();
+            renderer.backend = Renderer.Backend.valueOf(opt.getOrDefault("backend", "java2d").toUpperCase(Locale.ROOT));
+            if (opt.containsKey("threads")) renderer.setParallelism(Integer.parseInt(opt.get("threads")));
+            if (opt.containsKey("culling")) renderer.frustumCulling = Boolean.parseBoolean(opt.get("culling"));
+            renderer.showHud = Boolean.parseBoolean(opt.getOrDefault("hud", "false"));
+            renderer.packedProjection = !"scalar".equals(opt.getOrDefault("projection", "packed"));
+            if (opt.containsKey("chunk")) renderer.projectionChunk = Integer.parseInt(opt.get("chunk"));
+            renderer.lod = Boolean.parseBoolean(opt.getOrDefault("lod", "false"));
+            if (opt.containsKey("lodpx")) renderer.lodMinPx = Double.parseDouble(opt.get("lodpx"));
+            if (opt.containsKey("radius")) renderer.camRadius = Double.parseDouble(opt.get("radius"));
+            renderer.hiddenLines = Boolean.parseBoolean(opt.getOrDefault("hidden", "false"));
+            return renderer;
+        }
+        // ленивые структуры модели строятся до замера, как в Canvas3D.setModel
+        static void prepare(Renderer renderer, WireModel model){
+            model.bvh();
+            if (renderer.lod) for (WireModel lvl : model.lods()) lvl.bvh();
+            if (renderer.hiddenLines) model.faces();
+        }
+        // warmup кадров без замера, затем длительности кадров в frameNs, пока массив не заполнится
+        // или замер не превысит budgetNs; возвращает число снятых кадров
+        static int renderFrames(Renderer renderer, WireModel model, int instances, BufferedImage img,
+                                 int warmup, long[] frameNs, long budgetNs){
+            int W = img.getWidth(), H = img.getHeight();
+            Mat4 modelMatrix = Mat4.identity();
+            // сцена как в Canvas3D: modelMatrix — узел модели, под ним модель или instances копий
+            Scene scene = new Scene();
+            SceneNode modelNode = scene.root.add(new SceneNode(null, modelMatrix));
+            modelNode.add(instances > 0 ? Scene.instanceArray(model, instances) : new SceneNode(model));
+            Vec3 axisP1 = model.centroid(), axisP2 = new Vec3(1,1,0);
+            Spin spin = new Spin();
+            spin.setAxis(axisP1, axisP2);
+            spin.rebase(new Pose());
+
+            long start = 0;
+            int f = -warmup;
+            for (; f<frameNs.length; f++){
+                if (f==0) start = System.nanoTime();
+                else if (f>0 && System.nanoTime()-start > budgetNs) break;
+                long t0 = System.nanoTime();
+                renderer.profiler.begin(FrameProfiler.Stage.ANIMATION);
+                spin.advance(1.0/60, Canvas3D.DEFAULT_SPIN_DEG_PER_SEC);
+                spin.update().toMatrix(modelMatrix);
+                modelNode.invalidate();
+                if (instances > 0) scene.animate(1.0/60);
+                renderer.profiler.end(FrameProfiler.Stage.ANIMATION);
+                Graphics2D g2 = img.createGraphics();
+                g2.setColor(Color.white); g2.fillRect(0, 0, W, H);
+                renderer.render(g2, W, H, scene, axisP1, axisP2);
+                g2.dispose();
+                if (f>=0) frameNs[f] = System.nanoTime()-t0;
+            }
+            return f;
+        }
+
+        static double percentileMs(long[] sorted, double q){
+            int i = (int)Math.min(sorted.length-1, Math.round(q*(sorted.length-1)));
+            return sorted[i]*1e-6;
+        }
+        // аргументы вида ключ=значение
+        static Map<String,String> parseOptions(String[] args){
+            Map<String,String> opt = new HashMap<>();
+            for (String a : args){
+                int eq = a.indexOf('=');
+                if (eq<=0) throw new IllegalArgumentException("Ожидался аргумент ключ=значение: "+a);
+                opt.put(a.substring(0, eq), a.substring(eq+1));
+            }
+            return opt;
+        }
+        static WireModel modelByName(String name){
+            if (name.equals("letterB")) return WireModel.letterB(1.5);
+            int colon = name.indexOf(':');
+            if (colon > 0) return WireModel.generate(name.substring(0, colon), Integer.parseInt(name.substring(colon+1)));
+            if (name.endsWith(".obj") || name.endsWith(".wire")){
+                try { return ModelIO.read(Paths.get(name)); }
+                catch (IOException ex){ throw new UncheckedIOException(ex); }
+            }
+            throw new IllegalArgumentException("Неизвестная модель: "+name);
+        }
+    }
+
+    // ---------- Нагрузочный прогон ----------
+    // java -Djava.awt.headless=true Affine --stress [kinds=grid,sphere,torus,soup,text] [min=100] [max=10000000] [steps=1]
+    //         [frames=120] [warmup=60] [seconds=20] [size=1280x720] [instances=0] [out=stress.csv]
+    //         + параметры Renderer, как у --render (backend по умолчанию raster)
+    // Для каждого вида модели и числа рёбер min..max (steps точек на порядок) генерирует модель (WireModel.generate)
+    // и рисует кадры, как --render (с instances > 0 — столько анимированных копий), не дольше seconds на точку. Строка CSV на точку: FPS, перцентили кадра,
+    // куча и скорость выделения памяти всеми потоками; faces — грани, заданные генератором (без поиска по циклам).
+    // Нехватка памяти или ошибка пишется в status, прогон идёт дальше.
+    static class StressHarness {
+        static final String CSV_HEADER = "kind,target_edges,vertices,edges,faces,prepare_ms,frames,fps,p50_ms,p90_ms,p99_ms,max_ms,"
+                + "drawn,heap_used_mb,heap_peak_mb,alloc_mb_per_s,alloc_kb_per_frame,gc_count,gc_ms,status";
+
+        static void main(String[] args) throws IOException {
+            Map<String,String> opt = HeadlessRender.parseOptions(args);
+            opt.putIfAbsent("backend", "raster");
+            String[] kinds = opt.getOrDefault("kinds", "grid,sphere,torus,soup,text").split(",");
+            long min = Long.parseLong(opt.getOrDefault("min", "100")), max = Long.parseLong(opt.getOrDefault("max", "10000000"));
+            int steps = Math.max(1, Integer.parseInt(opt.getOrDefault("steps", "1")));
+            int frames = Integer.parseInt(opt.getOrDefault("frames", "120"));
+            int warmup = Integer.parseInt(opt.getOrDefault("warmup", "60"));
+            int instances = Integer.parseInt(opt.getOrDefault("instances", "0"));
+            long budgetNs = (long)(Double.parseDouble(opt.getOrDefault("seconds", "20"))*1e9);
+            String[] size = opt.getOrDefault("size", "1280x720").split("x");
+            int W = Integer.parseInt(size[0]), H = Integer.parseInt(size[1]);
+            Path out = Paths.get(opt.getOrDefault("out", "stress.csv"));
+
+            ArrayList<Integer> sizes = new ArrayList<>();
+            for (int k=0; ; k++){
+                double e = min*Math.pow(10, (double)k/steps);
+                if (e > max*(1+1e-9) || e > Integer.MAX_VALUE) break;
+                sizes.add((int)Math.round(e));
+            }
+            System.out.println(String.format(Locale.US, "max heap %.0f MB, %d cores, backend %s, frame %dx%d, instances %d -> %s",
+                    Runtime.getRuntime().maxMemory()/1e6, Runtime.getRuntime().availableProcessors(), opt.get("backend"), W, H,
+                    Math.max(1, instances), out));
+            try (BufferedWriter csv = Files.newBufferedWriter(out, StandardCharsets.UTF_8)){
+                csv.write(CSV_HEADER); csv.newLine();
+                System.out.println(CSV_HEADER);
+                for (String kind : kinds){
+                    for (int edges : sizes){
+                        String row = point(kind.trim(), edges, instances, opt, W, H, frames, warmup, budgetNs);
+                        csv.write(row); csv.newLine(); csv.flush();
+                        System.out.println(row);
+                    }
+                }
+            }
+        }
+
+        // одна точка кривой; модель и Renderer после неё больше не нужны и уходят в мусор
+        static String point(String kind, int edges, int instances, Map<String,String> opt, int W, int H, int frames, int warmup, long budgetNs){
+            WireModel model = null;
+            Renderer renderer = null;
+            String shape = ",,,";
+            try {
+                long t0 = System.nanoTime();
+                model = WireModel.generate(kind, edges);
+                renderer = HeadlessRender.configure(opt);
+                HeadlessRender.prepare(renderer, model);
+                double prepareMs = (System.nanoTime()-t0)*1e-6;
+                shape = String.format(Locale.US, "%d,%d,%d,%.1f", model.vertexCount, model.edgeCount, model.faceCount, prepareMs);
+
+                BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+                // прогрев (JIT, буферы Renderer) — тоже не дольше половины бюджета точки
+                HeadlessRender.renderFrames(renderer, model, instances, img, 0, new long[Math.max(1, warmup)], budgetNs/2);
+                long[] frameNs = new long[frames];
+                ArrayList<java.lang.management.MemoryPoolMXBean> heap = heapPools();
+                for (java.lang.management.MemoryPoolMXBean pool : heap) pool.resetPeakUsage();
+                long gc0 = Bench.gcCount(), gcMs0 = Bench.gcTimeMs(), alloc0 = allocatedBytes();
+                long start = System.nanoTime();
+                int n = HeadlessRender.renderFrames(renderer, model, instances, img, 0, frameNs, budgetNs);
+                double seconds = (System.nanoTime()-start)*1e-9;
+                long alloc = allocatedBytes() - alloc0;
+                long used = 0, peak = 0;
+                for (java.lang.management.MemoryPoolMXBean pool : heap){ used += pool.getUsage().getUsed(); peak += pool.getPeakUsage().getUsed(); }
+
+                long[] sorted = Arrays.copyOf(frameNs, n);
+                Arrays.sort(sorted);
+                long total = 0;
+                for (long ns : sorted) total += ns;
+                double allocMb = alloc < 0 || alloc0 < 0 ? Double.NaN : alloc/1e6;
+                return String.format(Locale.US, "%s,%d,%s,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%d,%.1f,%.1f,%.2f,%.2f,%d,%d,ok",
+                        kind, edges, shape, n, n/(total*1e-9),
+                        HeadlessRender.percentileMs(sorted, 0.50), HeadlessRender.percentileMs(sorted, 0.90),
+                        HeadlessRender.percentileMs(sorted, 0.99), sorted[n-1]*1e-6, renderer.statDrawn,
+                        used/1e6, peak/1e6, allocMb/seconds, allocMb*1e3/n, Bench.gcCount()-gc0, Bench.gcTimeMs()-gcMs0);
+            } catch (OutOfMemoryError ex){
+                return kind + "," + edges + "," + shape + ",,,,,,,,,,,,,,oom";
+            } catch (RuntimeException ex){
+                return kind + "," + edges + "," + shape + ",,,,,,,,,,,,,,error: "
+                        + String.valueOf(ex.getMessage()).replace(',', ';').replace('\n', ' ');
+            } finally {
+                if (renderer != null) renderer.setParallelism(0);
+            }
+        }
+        // выделено в куче всеми живыми потоками (рендер и пул ForkJoin), байт; -1 — JVM не считает
+        static long allocatedBytes(){
+            java.lang.management.ThreadMXBean tb = java.lang.management.ManagementFactory.getThreadMXBean();
+            if (!(tb instanceof com.sun.management.ThreadMXBean)) return -1;
+            long sum = 0;
+            for (long b : ((com.sun.management.ThreadMXBean)tb).getThreadAllocatedBytes(tb.getAllThreadIds())) if (b > 0) sum += b;
+            return sum;
+        }
+        // пулы кучи; пик — сумма пиков по пулам, то есть оценка сверху
+        static ArrayList<java.lang.management.MemoryPoolMXBean> heapPools(){
+            ArrayList<java.lang.management.MemoryPoolMXBean> heap = new ArrayList<>();
+            for (java.lang.management.MemoryPoolMXBean pool : java.lang.management.ManagementFactory.getMemoryPoolMXBeans())
+                if (pool.getType() == java.lang.management.MemoryType.HEAP) heap.add(pool);
+            return heap;
+        }
+    }
+
     // ---------- Окно ----------
     private Affine(){
         super("1 лабораторная");